@@ -0,0 +1,213 @@
+package plc.project;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The results of analyzing a tree, kept apart from the {@link Ast} so that
+ * the tree itself is never modified. See {@link Analyzer#setResult(
+ * AnalysisResult)} and {@link Generator#setResult(AnalysisResult)}.
+ *
+ * Each node of the tree is given an id, numbered as the nodes of {@link
+ * FlatAst#of(Ast.Source)}, and the type, variable and function of each node
+ * are stored in arrays indexed by that id. The ids are kept by the result in
+ * an identity map rather than on the nodes, so a node may be part of any
+ * number of trees, such as a member reused by {@link ParsedSource#edit(int,
+ * int, String)}. The ids are shared by every result from {@link #blank()}, so
+ * one parsed tree can be analyzed under different scopes, by different
+ * threads, each into its own result. A result itself is not thread safe.
+ *
+ * A node which occurs more than once in the tree, as an expression interned
+ * by an {@link AstFactory} may, has an id for each occurrence. While the
+ * {@link Analyzer} or {@link Generator} visits the tree, such a node refers
+ * to the occurrence being visited, or within a node which is being visited
+ * to its first occurrence there. Otherwise it refers to its first
+ * occurrence.
+ *
+ * As on the nodes themselves, the type of an {@link Ast.Expr.Access} is that
+ * of its variable, and the type of an {@link Ast.Expr.Function} is the
+ * return type of its function.
+ */
+public final class AnalysisResult {
+
+    private final Ids ids;
+    private final Environment.Type[] types;
+    private final Environment.Variable[] variables;
+    private final Environment.Function[] functions;
+
+    // the ids of the nodes being visited, innermost last, and of the last
+    // child each has finished visiting
+    private int[] context = new int[16];
+    private int[] visited = new int[16];
+    private int depth = 0;
+
+    /**
+     * Creates an empty result for the tree rooted at the given node.
+     */
+    public AnalysisResult(Ast root) {
+        this(new Ids(FlatAst.number(root)));
+    }
+
+    private AnalysisResult(Ids ids) {
+        this.ids = ids;
+        this.types = new Environment.Type[ids.starts.length];
+        this.variables = new Environment.Variable[ids.starts.length];
+        this.functions = new Environment.Function[ids.starts.length];
+    }
+
+    /**
+     * Returns an empty result for the same tree, sharing its ids.
+     */
+    public AnalysisResult blank() {
+        return new AnalysisResult(ids);
+    }
+
+    /**
+     * Returns the number of ids, which count each occurrence of a node.
+     */
+    public int size() {
+        return types.length;
+    }
+
+    /**
+     * Returns the id of a node of the tree.
+     */
+    public int getId(Ast ast) {
+        return index(ast);
+    }
+
+    public Environment.Type getType(Ast.Expr ast) {
+        if (ast instanceof Ast.Expr.Access) {
+            return getVariable(ast).getType();
+        } else if (ast instanceof Ast.Expr.Function) {
+            return getFunction(ast).getReturnType();
+        }
+        Environment.Type type = types[index(ast)];
+        if (type == null) {
+            throw new IllegalStateException("type is uninitialized");
+        }
+        return type;
+    }
+
+    /**
+     * Sets the type of a literal, group or binary expression.
+     */
+    public void setType(Ast.Expr ast, Environment.Type type) {
+        types[index(ast)] = type;
+    }
+
+    /**
+     * Returns the variable of a field, declaration or access.
+     */
+    public Environment.Variable getVariable(Ast ast) {
+        Environment.Variable variable = variables[index(ast)];
+        if (variable == null) {
+            throw new IllegalStateException("variable is uninitialized");
+        }
+        return variable;
+    }
+
+    public void setVariable(Ast ast, Environment.Variable variable) {
+        variables[index(ast)] = variable;
+    }
+
+    /**
+     * Returns the function of a method or function call.
+     */
+    public Environment.Function getFunction(Ast ast) {
+        Environment.Function function = functions[index(ast)];
+        if (function == null) {
+            throw new IllegalStateException("function is uninitialized");
+        }
+        return function;
+    }
+
+    public void setFunction(Ast ast, Environment.Function function) {
+        functions[index(ast)] = function;
+    }
+
+    /**
+     * Records that a visitor has entered the given node, which until the
+     * matching {@link #exit()} decides the occurrence of any node within it.
+     */
+    void enter(Ast ast) {
+        // children are visited in order, so a node occurring twice in one
+        // parent is entered at its occurrence after the last child visited
+        int id = index(ast, depth > 0 ? visited[depth - 1] : -1);
+        if (depth == context.length) {
+            context = Arrays.copyOf(context, depth * 2);
+            visited = Arrays.copyOf(visited, depth * 2);
+        }
+        context[depth] = id;
+        visited[depth++] = -1;
+    }
+
+    /**
+     * Records that a visitor has left the node it last entered.
+     */
+    void exit() {
+        depth--;
+        if (depth > 0) {
+            visited[depth - 1] = context[depth];
+        }
+    }
+
+    private int index(Ast ast) {
+        return index(ast, -1);
+    }
+
+    /**
+     * Returns the id of the occurrence of a node within the innermost node
+     * being visited, preferring the first one after {@code after}.
+     */
+    private int index(Ast ast, int after) {
+        Integer first = ids.firsts.get(ast);
+        if (first == null) {
+            throw new IllegalArgumentException("Node is not part of the analyzed tree: " + ast);
+        }
+        if (ids.next[first] < 0) {
+            return first;
+        }
+        for (int i = depth - 1; i >= 0; i--, after = -1) {
+            int outer = context[i];
+            int within = -1;
+            for (int id = first; id >= 0 && id <= outer; id = ids.next[id]) {
+                if (id >= ids.starts[outer]) {
+                    if (id > after) {
+                        return id;
+                    } else if (within < 0) {
+                        within = id;
+                    }
+                }
+            }
+            if (within >= 0) {
+                return within;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * The ids of a tree, which are shared by its results and never modified.
+     */
+    private static final class Ids {
+
+        // the first id of each node, and the next id of the same node or -1
+        private final Map<Ast, Integer> firsts;
+        private final int[] next;
+        private final int[] starts;
+
+        private Ids(FlatAst.Numbering numbering) {
+            this.firsts = new IdentityHashMap<>(numbering.nodes.length);
+            this.next = new int[numbering.nodes.length];
+            this.starts = numbering.starts;
+            for (int id = numbering.nodes.length - 1; id >= 0; id--) {
+                Integer later = firsts.put(numbering.nodes[id], id);
+                next[id] = later == null ? -1 : later;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,158 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link AnalysisResult}, which numbers each tree it is created
+ * for without modifying the nodes, so nodes may be shared within a tree and
+ * between trees.
+ */
+final class AnalysisResultTests {
+
+    @Test
+    void testInternedTree() {
+        Ast.Source source = parseInterned("DEF f() DO g(1) + g(1); END");
+        AnalysisResult result = Assertions.assertDoesNotThrow(() -> new AnalysisResult(source));
+        Assertions.assertEquals(FlatAst.of(source).size(), result.size());
+
+        Ast.Stmt statement = source.getMethods().get(0).getStatements().get(0);
+        Ast.Expr.Binary binary = (Ast.Expr.Binary) ((Ast.Stmt.Expression) statement).getExpression();
+        Assertions.assertSame(binary.getLeft(), binary.getRight());
+        result.enter(binary);
+        result.enter(binary.getLeft());
+        int left = result.getId(binary.getLeft());
+        result.exit();
+        result.enter(binary.getRight());
+        int right = result.getId(binary.getRight());
+        result.exit();
+        result.exit();
+        Assertions.assertTrue(left < right);
+        Assertions.assertTrue(right < result.getId(binary));
+    }
+
+    @Test
+    void testInternedInScopes() {
+        Ast.Source source = parseInterned("DEF main() DO "
+                + "WHILE TRUE DO LET x = 1; LET y = x + 1; END "
+                + "WHILE TRUE DO LET x = 'c'; LET z = x; END "
+                + "END");
+        List<Ast.Stmt> statements = source.getMethods().get(0).getStatements();
+        Ast.Stmt.While first = (Ast.Stmt.While) statements.get(0);
+        Ast.Stmt.While second = (Ast.Stmt.While) statements.get(1);
+        Ast.Stmt.Declaration y = (Ast.Stmt.Declaration) first.getStatements().get(1);
+        Ast.Stmt.Declaration z = (Ast.Stmt.Declaration) second.getStatements().get(1);
+        Ast.Expr x = ((Ast.Expr.Binary) y.getValue().get()).getLeft();
+        Assertions.assertSame(x, z.getValue().get());
+
+        AnalysisResult result = new AnalysisResult(source);
+        Analyzer analyzer = new Analyzer(null);
+        analyzer.setResult(result);
+        analyzer.visit((Ast) first);
+        analyzer.visit((Ast) second);
+
+        result.enter(first);
+        Assertions.assertEquals(Environment.Type.INTEGER, result.getType(x));
+        result.exit();
+        result.enter(second);
+        Assertions.assertEquals(Environment.Type.CHARACTER, result.getType(x));
+        result.exit();
+
+        Assertions.assertEquals("int y = x + 1;", generate(y, result));
+        Assertions.assertEquals("char z = x;", generate(z, result));
+    }
+
+    @Test
+    void testEditedParsedSource() {
+        ParsedSource parsed = ParsedSource.parse("LET a = 1;\nDEF f() DO LET x = 1; END\nDEF g() DO LET y = 2; END");
+        AnalysisResult before = analyze(parsed.getSource());
+
+        String text = parsed.getText();
+        ParsedSource edited = parsed.edit(text.indexOf("1; END"), 1, "1 + 2");
+        Ast.Method g = parsed.getSource().getMethods().get(1);
+        Assertions.assertSame(g, edited.getSource().getMethods().get(1));
+
+        AnalysisResult after = Assertions.assertDoesNotThrow(() -> analyze(edited.getSource()));
+        Assertions.assertEquals(FlatAst.of(edited.getSource()).size(), after.size());
+        Assertions.assertEquals(before.size() - 2, before.getId(g));
+        Assertions.assertEquals(after.size() - 2, after.getId(g));
+
+        Ast.Stmt.Declaration x = (Ast.Stmt.Declaration) edited.getSource().getMethods().get(0).getStatements().get(0);
+        Ast.Stmt.Declaration y = (Ast.Stmt.Declaration) g.getStatements().get(0);
+        Assertions.assertEquals(Environment.Type.INTEGER, after.getVariable(x).getType());
+        Assertions.assertNotSame(before.getVariable(y), after.getVariable(y));
+    }
+
+    @Test
+    void testBlankResultsInParallel() throws Exception {
+        Ast.Source source = parseInterned("DEF main() DO WHILE TRUE DO LET x = 1 + 2 * 3; LET y = x - 1; END END");
+        Ast.Stmt.While loop = (Ast.Stmt.While) source.getMethods().get(0).getStatements().get(0);
+        Ast.Stmt.Declaration y = (Ast.Stmt.Declaration) loop.getStatements().get(1);
+        AnalysisResult result = new AnalysisResult(source);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Environment.Type>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                futures.add(executor.submit(() -> {
+                    AnalysisResult blank = result.blank();
+                    Analyzer analyzer = new Analyzer(null);
+                    analyzer.setResult(blank);
+                    analyzer.visit((Ast) loop);
+                    return blank.getVariable(y).getType();
+                }));
+            }
+            for (Future<Environment.Type> future : futures) {
+                Assertions.assertEquals(Environment.Type.INTEGER, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testNodeOutsideTree() {
+        AnalysisResult result = new AnalysisResult(parseInterned("DEF f() DO x; END"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> result.getId(new Ast.Expr.Literal(BigInteger.ONE)));
+    }
+
+    private static Ast.Source parseInterned(String source) {
+        Parser parser = new Parser(new Lexer(source).lex());
+        parser.setFactory(new AstFactory());
+        return parser.parseSource();
+    }
+
+    /**
+     * Analyzes the statements of each method, each in its own scope.
+     */
+    private static AnalysisResult analyze(Ast.Source source) {
+        AnalysisResult result = new AnalysisResult(source);
+        for (Ast.Method method : source.getMethods()) {
+            Analyzer analyzer = new Analyzer(null);
+            analyzer.setResult(result);
+            for (Ast.Stmt statement : method.getStatements()) {
+                analyzer.visit((Ast) statement);
+            }
+        }
+        return result;
+    }
+
+    private static String generate(Ast ast, AnalysisResult result) {
+        StringWriter writer = new StringWriter();
+        Generator generator = new Generator(new PrintWriter(writer));
+        generator.setResult(result);
+        generator.visit(ast);
+        return writer.toString();
+    }
+
+}
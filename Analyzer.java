@@ -2,8 +2,10 @@ package plc.project;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -17,6 +19,8 @@ public final class Analyzer implements Ast.Visitor<Void> {
 
     public Scope scope;
     private Ast.Method method;
+    private AnalysisResult result;
+    private boolean iterative = false;
 
     public Analyzer(Scope parent) {
         scope = new Scope(parent);
@@ -27,6 +31,50 @@ public final class Analyzer implements Ast.Visitor<Void> {
         return scope;
     }
 
+    /**
+     * Sets where the types, variables and functions found by the analysis
+     * are stored. By default, or if {@code null} is given, they are set on
+     * the nodes of the tree. Otherwise they are stored in the given result
+     * and the tree is not modified, so that it can be shared.
+     */
+    public void setResult(AnalysisResult result) {
+        this.result = result;
+    }
+
+    /**
+     * Sets whether expressions are analyzed with an explicit stack on the
+     * heap rather than by recursion, as with {@link
+     * Interpreter#setIterative(boolean)}, so that expressions nested to any
+     * depth can be analyzed without overflowing the thread's stack. Results
+     * and errors are the same either way. Statements are still analyzed
+     * recursively.
+     */
+    public void setIterative(boolean iterative) {
+        this.iterative = iterative;
+    }
+
+    /**
+     * Dispatches to the method for the node, first entering it in the
+     * result, if any, so that a node occurring more than once in the tree
+     * refers to the occurrence being visited.
+     */
+    @Override
+    public Void visit(Ast ast) {
+        if (iterative && ast instanceof Ast.Expr) {
+            analyze((Ast.Expr) ast);
+            return null;
+        }
+        if (result == null) {
+            return Ast.Visitor.super.visit(ast);
+        }
+        result.enter(ast);
+        try {
+            return Ast.Visitor.super.visit(ast);
+        } finally {
+            result.exit();
+        }
+    }
+
     @Override
     public Void visit(Ast.Source ast) {
         //throw new UnsupportedOperationException();  // TODO
@@ -75,13 +123,13 @@ public final class Analyzer implements Ast.Visitor<Void> {
 
             if (type == null)
             {
-                type = ast.getValue().get().getType();
+                type = getType(ast.getValue().get());
             }
 
-            requireAssignable(type, ast.getValue().get().getType());
+            requireAssignable(type, getType(ast.getValue().get()));
         }
 
-        ast.setVariable(scope.defineVariable(ast.getName(), ast.getName(), type, Environment.NIL));
+        setVariable(ast, scope.defineVariable(ast.getName(), ast.getName(), type, Environment.NIL));
 
         return null;
     }
@@ -98,10 +146,10 @@ public final class Analyzer implements Ast.Visitor<Void> {
             throw new RuntimeException("Receiver not an access expression.");
         }
        // System.out.println(ast.getValue());
-        if (ast.getReceiver().getType().getJvmName().equals("int"))
+        if (getType(ast.getReceiver()).getJvmName().equals("int"))
         {
            // System.out.println("It's an integer!");
-            requireAssignable(Environment.Type.INTEGER, ((Ast.Expr.Access) ast.getReceiver()).getVariable().getType());
+            requireAssignable(Environment.Type.INTEGER, getVariable((Ast.Expr.Access) ast.getReceiver()).getType());
         }
         //requireAssignable();
 
@@ -114,7 +162,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
         // 1. handle conditions
        // if (ast.getCondition().getType()!= Environment.Type.BOOLEAN)
         visit(ast.getCondition());
-        requireAssignable(Environment.Type.BOOLEAN, ast.getCondition().getType());
+        requireAssignable(Environment.Type.BOOLEAN, getType(ast.getCondition()));
 
         if (ast.getThenStatements().isEmpty()){
             throw new RuntimeException("Empty statement is not allowed");
@@ -151,7 +199,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
     public Void visit(Ast.Stmt.While ast)
     {
         visit(ast.getCondition());
-        requireAssignable(Environment.Type.BOOLEAN, ast.getCondition().getType());
+        requireAssignable(Environment.Type.BOOLEAN, getType(ast.getCondition()));
         try {
             scope = new Scope(scope);
             for (Ast.Stmt stmt : ast.getStatements())
@@ -182,16 +230,16 @@ public final class Analyzer implements Ast.Visitor<Void> {
         if (ast.getLiteral() instanceof Boolean)
         {
             //System.out.println("This is a Boolean.");
-            ast.setType(Environment.Type.BOOLEAN);
+            setType(ast, Environment.Type.BOOLEAN);
             //System.out.println(ast);
         }
         else if (ast.getLiteral() instanceof Character)
         {
-            ast.setType(Environment.Type.CHARACTER);
+            setType(ast, Environment.Type.CHARACTER);
         }
         else if (ast.getLiteral() instanceof String)
         {
-            ast.setType(Environment.Type.STRING);
+            setType(ast, Environment.Type.STRING);
         }
         else if (ast.getLiteral() instanceof BigInteger)
         {
@@ -201,7 +249,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
             if (bitCount > 32)
                 throw new RuntimeException("The integer value is out of range!");
             else
-                ast.setType(Environment.Type.INTEGER);
+                setType(ast, Environment.Type.INTEGER);
         }
 
 
@@ -213,60 +261,93 @@ public final class Analyzer implements Ast.Visitor<Void> {
         // TODO: Check to make sure expression is binary
 
         // requireAssignable(Ast.Expr.Binary, ast.getExpression().getType());
-        ast.setType(ast.getExpression().getType());
+        setType(ast, getType(ast.getExpression()));
 
         return null;
     }
 
     @Override
     public Void visit(Ast.Expr.Binary ast) {
+        if (visitsOperands(ast)) {
+            visit(ast.getLeft());
+            visit(ast.getRight());
+        }
+        checkBinary(ast);
+
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expr.Access ast) {
+
+        if (ast.getReceiver().isPresent())
+        {
+            //System.out.println(ast.getReceiver());
+            visit(ast.getReceiver().get());
+        }
+        resolve(ast);
+
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expr.Function ast) {
+
+        if (ast.getReceiver().isPresent())
+        {
+            visit(ast.getReceiver().get());
+        }
+        resolve(ast);
+
+        return null;
+    }
+
+    /**
+     * Checks the operands of a binary expression, once they have been
+     * visited, and sets its type.
+     */
+    private void checkBinary(Ast.Expr.Binary ast) {
 
         if (ast.getOperator().equals("AND") || ast.getOperator().equals("OR"))
         {
-            visit(ast.getLeft());
-            visit(ast.getRight());
-            requireAssignable(Environment.Type.BOOLEAN, ast.getLeft().getType());
-            requireAssignable(Environment.Type.BOOLEAN, ast.getRight().getType());
+            requireAssignable(Environment.Type.BOOLEAN, getType(ast.getLeft()));
+            requireAssignable(Environment.Type.BOOLEAN, getType(ast.getRight()));
 
-            ast.setType(Environment.Type.BOOLEAN);
+            setType(ast, Environment.Type.BOOLEAN);
         }
         else if (ast.getOperator().equals("<") || ast.getOperator().equals("<=") || ast.getOperator().equals(">")
                 || ast.getOperator().equals(">=") || ast.getOperator().equals("==") || ast.getOperator().equals("!="))
         {
-            visit(ast.getLeft());
-            visit(ast.getRight());
-            requireAssignable(Environment.Type.COMPARABLE, ast.getLeft().getType());
-            requireAssignable(Environment.Type.COMPARABLE, ast.getRight().getType());
-            requireAssignable(ast.getLeft().getType(), ast.getRight().getType());
+            requireAssignable(Environment.Type.COMPARABLE, getType(ast.getLeft()));
+            requireAssignable(Environment.Type.COMPARABLE, getType(ast.getRight()));
+            requireAssignable(getType(ast.getLeft()), getType(ast.getRight()));
 
-            ast.setType(Environment.Type.BOOLEAN);
+            setType(ast, Environment.Type.BOOLEAN);
         }
         else if (ast.getOperator().equals("+"))
         {
-            visit(ast.getLeft());
-            visit(ast.getRight());
-            if ((ast.getLeft().getType().equals(Environment.Type.STRING)) || (ast.getRight().getType().equals(Environment.Type.STRING)))
+            if ((getType(ast.getLeft()).equals(Environment.Type.STRING)) || (getType(ast.getRight()).equals(Environment.Type.STRING)))
             {
                 //System.out.println("Either side is a string.");
-                ast.setType(Environment.Type.STRING);
+                setType(ast, Environment.Type.STRING);
             }
 
-            else if (ast.getLeft().getType().equals(Environment.Type.INTEGER))
+            else if (getType(ast.getLeft()).equals(Environment.Type.INTEGER))
             {
                 //System.out.println("We found a left integer!");
-                if (ast.getRight().getType().equals(Environment.Type.INTEGER))
+                if (getType(ast.getRight()).equals(Environment.Type.INTEGER))
                 {
-                    ast.setType(Environment.Type.INTEGER);
+                    setType(ast, Environment.Type.INTEGER);
                 }
                 else
                     throw new RuntimeException("Left side is an integer, right must be as well.");
             }
-            else if (ast.getLeft().getType().equals(Environment.Type.DECIMAL))
+            else if (getType(ast.getLeft()).equals(Environment.Type.DECIMAL))
             {
                 //System.out.println("We found a left decimal!");
-                if (ast.getRight().getType().equals(Environment.Type.DECIMAL))
+                if (getType(ast.getRight()).equals(Environment.Type.DECIMAL))
                 {
-                    ast.setType(Environment.Type.DECIMAL);
+                    setType(ast, Environment.Type.DECIMAL);
                 }
                 else
                     throw new RuntimeException("Left side is a decimal, right must be as well.");
@@ -279,23 +360,21 @@ public final class Analyzer implements Ast.Visitor<Void> {
         }
         else if (ast.getOperator().equals("-") || ast.getOperator().equals("*") || ast.getOperator().equals("/"))
         {
-            visit(ast.getLeft());
-            visit(ast.getRight());
 
-            if (ast.getLeft().getType().equals(Environment.Type.INTEGER))
+            if (getType(ast.getLeft()).equals(Environment.Type.INTEGER))
             {
-                if (ast.getRight().getType().equals(Environment.Type.INTEGER))
+                if (getType(ast.getRight()).equals(Environment.Type.INTEGER))
                 {
-                    ast.setType(Environment.Type.INTEGER);
+                    setType(ast, Environment.Type.INTEGER);
                 }
                 else
                     throw new RuntimeException("Left side is an integer, right must be as well.");
             }
-            else if (ast.getLeft().getType().equals(Environment.Type.DECIMAL))
+            else if (getType(ast.getLeft()).equals(Environment.Type.DECIMAL))
             {
-                if (ast.getRight().getType().equals(Environment.Type.DECIMAL))
+                if (getType(ast.getRight()).equals(Environment.Type.DECIMAL))
                 {
-                    ast.setType(Environment.Type.DECIMAL);
+                    setType(ast, Environment.Type.DECIMAL);
                 }
                 else
                     throw new RuntimeException("Left side is an decimal, right must be as well.");
@@ -303,47 +382,159 @@ public final class Analyzer implements Ast.Visitor<Void> {
             else
                 throw new RuntimeException("Must be an integer or a decimal.");
         }
-        return null;
     }
 
-    @Override
-    public Void visit(Ast.Expr.Access ast) {
+    /**
+     * Returns true if the operands of a binary expression are visited before
+     * it is checked, which is the case for every known operator.
+     */
+    private static boolean visitsOperands(Ast.Expr.Binary ast) {
+        switch (ast.getOperator()) {
+            case "AND": case "OR":
+            case "<": case "<=": case ">": case ">=": case "==": case "!=":
+            case "+": case "-": case "*": case "/":
+                return true;
+            default:
+                return false;
+        }
+    }
 
+    /**
+     * Sets the variable of an access, once its receiver has been visited.
+     */
+    private void resolve(Ast.Expr.Access ast) {
         if (ast.getReceiver().isPresent())
         {
-            // Do something
-            //System.out.println(ast.getReceiver());
-            visit(ast.getReceiver().get());
-            ast.setVariable(ast.getReceiver().get().getType().getField(ast.getName()));
+            setVariable(ast, getType(ast.getReceiver().get()).getField(ast.getName()));
         }
         else
         {
-            // Do something else
-            ast.setVariable(scope.lookupVariable(ast.getName()));
+            setVariable(ast, scope.lookupVariable(ast.getName()));
         }
-
-        return null;
     }
 
-    @Override
-    public Void visit(Ast.Expr.Function ast) {
-
+    /**
+     * Sets the function of a call, once its receiver has been visited, and
+     * checks its arguments.
+     */
+    private void resolve(Ast.Expr.Function ast) {
         if (ast.getReceiver().isPresent())
         {
-            visit(ast.getReceiver().get());
-            ast.setFunction(ast.getReceiver().get().getType().getMethod(ast.getName(), ast.getArguments().size()));
+            setFunction(ast, getType(ast.getReceiver().get()).getMethod(ast.getName(), ast.getArguments().size()));
         }
         else
         {
-            ast.setFunction(scope.lookupFunction(ast.getName(), ast.getArguments().size()));
+            setFunction(ast, scope.lookupFunction(ast.getName(), ast.getArguments().size()));
         }
 
         for (int i = 0; i < ast.getArguments().size(); i++)
         {
-            requireAssignable(scope.lookupFunction(ast.getName(), ast.getArguments().size()).getParameterTypes().get(i), ast.getArguments().get(i).getType());
+            requireAssignable(scope.lookupFunction(ast.getName(), ast.getArguments().size()).getParameterTypes().get(i), getType(ast.getArguments().get(i)));
         }
+    }
 
-        return null;
+    /**
+     * Analyzes an expression as the visit methods would, but keeps the
+     * expressions being analyzed on an explicit stack. An expression is
+     * entered when it is first reached, pushing the operands its visit
+     * method visits, and is checked once they have all been analyzed.
+     */
+    private void analyze(Ast.Expr ast) {
+        Deque<Ast.Expr> stack = new ArrayDeque<>();
+        Deque<Boolean> entered = new ArrayDeque<>();
+        int depth = 0;
+        stack.push(ast);
+        entered.push(false);
+        try {
+            while (!stack.isEmpty())
+            {
+                Ast.Expr expr = stack.peek();
+                if (!entered.peek())
+                {
+                    entered.pop();
+                    entered.push(true);
+                    if (result != null) {
+                        result.enter(expr);
+                        depth++;
+                    }
+                    // pushed in reverse, so that they are analyzed in order
+                    if (expr instanceof Ast.Expr.Binary && visitsOperands((Ast.Expr.Binary) expr))
+                    {
+                        stack.push(((Ast.Expr.Binary) expr).getRight());
+                        entered.push(false);
+                        stack.push(((Ast.Expr.Binary) expr).getLeft());
+                        entered.push(false);
+                    }
+                    else if (expr instanceof Ast.Expr.Access && ((Ast.Expr.Access) expr).getReceiver().isPresent())
+                    {
+                        stack.push(((Ast.Expr.Access) expr).getReceiver().get());
+                        entered.push(false);
+                    }
+                    else if (expr instanceof Ast.Expr.Function && ((Ast.Expr.Function) expr).getReceiver().isPresent())
+                    {
+                        stack.push(((Ast.Expr.Function) expr).getReceiver().get());
+                        entered.push(false);
+                    }
+                    continue;
+                }
+
+                stack.pop();
+                entered.pop();
+                if (expr instanceof Ast.Expr.Binary)
+                    checkBinary((Ast.Expr.Binary) expr);
+                else if (expr instanceof Ast.Expr.Access)
+                    resolve((Ast.Expr.Access) expr);
+                else if (expr instanceof Ast.Expr.Function)
+                    resolve((Ast.Expr.Function) expr);
+                else
+                    expr.accept(this);
+                if (result != null) {
+                    result.exit();
+                    depth--;
+                }
+            }
+        } finally {
+            for (; depth > 0; depth--)
+                result.exit();
+        }
+    }
+
+    private Environment.Type getType(Ast.Expr ast) {
+        return result != null ? result.getType(ast) : ast.getType();
+    }
+
+    private void setType(Ast.Expr ast, Environment.Type type) {
+        if (result != null) {
+            result.setType(ast, type);
+        } else if (ast instanceof Ast.Expr.Literal) {
+            ((Ast.Expr.Literal) ast).setType(type);
+        } else if (ast instanceof Ast.Expr.Group) {
+            ((Ast.Expr.Group) ast).setType(type);
+        } else {
+            ((Ast.Expr.Binary) ast).setType(type);
+        }
+    }
+
+    private Environment.Variable getVariable(Ast.Expr.Access ast) {
+        return result != null ? result.getVariable(ast) : ast.getVariable();
+    }
+
+    private void setVariable(Ast ast, Environment.Variable variable) {
+        if (result != null) {
+            result.setVariable(ast, variable);
+        } else if (ast instanceof Ast.Stmt.Declaration) {
+            ((Ast.Stmt.Declaration) ast).setVariable(variable);
+        } else {
+            ((Ast.Expr.Access) ast).setVariable(variable);
+        }
+    }
+
+    private void setFunction(Ast.Expr.Function ast, Environment.Function function) {
+        if (result != null) {
+            result.setFunction(ast, function);
+        } else {
+            ast.setFunction(function);
+        }
     }
 
     public static void requireAssignable(Environment.Type target, Environment.Type type)
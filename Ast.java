@@ -11,6 +11,12 @@ import java.util.Optional;
  */
 public abstract class Ast {
 
+    /**
+     * Calls the {@link Visitor} method for the runtime class of this node,
+     * which {@link Visitor#visit(Ast)} uses to dispatch in constant time.
+     */
+    public abstract <T> T accept(Visitor<T> visitor);
+
     public static final class Source extends Ast {
 
         private final List<Field> fields;
@@ -29,6 +35,11 @@ public abstract class Ast {
             return methods;
         }
 
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.visit(this);
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof Source &&
@@ -36,6 +47,11 @@ public abstract class Ast {
                     methods.equals(((Source) obj).methods);
         }
 
+        @Override
+        public int hashCode() {
+            return Objects.hash(fields, methods);
+        }
+
         @Override
         public String toString() {
             return "Ast.Source{" +
@@ -86,6 +102,11 @@ public abstract class Ast {
             this.variable = variable;
         }
 
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.visit(this);
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof Field &&
@@ -95,6 +116,11 @@ public abstract class Ast {
                     Objects.equals(variable, ((Field) obj).variable);
         }
 
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, typeName, value);
+        }
+
         @Override
         public String toString() {
             return "Field{" +
@@ -162,6 +188,11 @@ public abstract class Ast {
             this.function = function;
         }
 
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.visit(this);
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof Method &&
@@ -173,6 +204,11 @@ public abstract class Ast {
                     Objects.equals(function, ((Method) obj).function);
         }
 
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, parameters, parameterTypeNames, returnTypeName, statements);
+        }
+
         @Override
         public String toString() {
             return "Method{" +
@@ -201,12 +237,22 @@ public abstract class Ast {
                 return expression;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Expression &&
                         expression.equals(((Expression) obj).expression);
             }
 
+            @Override
+            public int hashCode() {
+                return expression.hashCode();
+            }
+
             @Override
             public String toString() {
                 return "Ast.Stmt.Expression{" +
@@ -256,6 +302,11 @@ public abstract class Ast {
                 this.variable = variable;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Declaration &&
@@ -265,6 +316,11 @@ public abstract class Ast {
                         Objects.equals(variable, ((Declaration) obj).variable);
             }
 
+            @Override
+            public int hashCode() {
+                return Objects.hash(name, typeName, value);
+            }
+
             @Override
             public String toString() {
                 return "Declaration{" +
@@ -295,6 +351,11 @@ public abstract class Ast {
                 return value;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Assignment &&
@@ -302,6 +363,11 @@ public abstract class Ast {
                         value.equals(((Assignment) obj).value);
             }
 
+            @Override
+            public int hashCode() {
+                return Objects.hash(receiver, value);
+            }
+
             @Override
             public final String toString() {
                 return "Ast.Stmt.Assignment{" +
@@ -337,6 +403,11 @@ public abstract class Ast {
                 return elseStatements;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof If &&
@@ -345,6 +416,11 @@ public abstract class Ast {
                         elseStatements.equals(((If) obj).elseStatements);
             }
 
+            @Override
+            public int hashCode() {
+                return Objects.hash(condition, thenStatements, elseStatements);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Stmt.If{" +
@@ -380,6 +456,11 @@ public abstract class Ast {
                 return statements;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof For &&
@@ -388,6 +469,11 @@ public abstract class Ast {
                         statements.equals(((For) obj).statements);
             }
 
+            @Override
+            public int hashCode() {
+                return Objects.hash(name, value, statements);
+            }
+
             @Override
             public String toString() {
                 return "For{" +
@@ -417,6 +503,11 @@ public abstract class Ast {
                 return statements;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof While &&
@@ -424,6 +515,11 @@ public abstract class Ast {
                         statements.equals(((While) obj).statements);
             }
 
+            @Override
+            public int hashCode() {
+                return Objects.hash(condition, statements);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Stmt.While{" +
@@ -446,12 +542,22 @@ public abstract class Ast {
                 return value;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Return &&
                         value.equals(((Return) obj).value);
             }
 
+            @Override
+            public int hashCode() {
+                return value.hashCode();
+            }
+
             @Override
             public String toString() {
                 return "Ast.Stmt.Return{" +
@@ -461,8 +567,65 @@ public abstract class Ast {
 
         }
 
+        /**
+         * A statement which failed to parse, produced in place of the
+         * statement by {@link Parser#parseSourceRecovering(List)}.
+         */
+        public static final class Error extends Stmt {
+
+            private final String message;
+            private final int index;
+
+            public Error(String message, int index) {
+                this.message = message;
+                this.index = index;
+            }
+
+            public String getMessage() {
+                return message;
+            }
+
+            public int getIndex() {
+                return index;
+            }
+
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj instanceof Error &&
+                        message.equals(((Error) obj).message) &&
+                        index == ((Error) obj).index;
+            }
+
+            @Override
+            public int hashCode() {
+                return 31 * message.hashCode() + index;
+            }
+
+            @Override
+            public String toString() {
+                return "Ast.Stmt.Error{" +
+                        "message='" + message + '\'' +
+                        ", index=" + index +
+                        '}';
+            }
+
+        }
+
     }
 
+    /**
+     * Expressions cache a structural hash, computed from their children's
+     * when constructed, so {@link #hashCode()} is constant time and {@link
+     * #equals(Object)} rejects most unequal subtrees without descending. The
+     * hash excludes the type, variable or function set by analysis, and an
+     * expression must not be changed otherwise after it is constructed. See
+     * {@link AstFactory} for sharing equal subtrees.
+     */
     public static abstract class Expr extends Ast {
 
         public abstract Environment.Type getType();
@@ -470,10 +633,12 @@ public abstract class Ast {
         public static final class Literal extends Expr {
 
             private final Object literal;
+            private final int hash;
             private Environment.Type type = null;
 
             public Literal(Object literal) {
                 this.literal = literal;
+                this.hash = Objects.hashCode(literal);
             }
 
             public Object getLiteral() {
@@ -492,13 +657,24 @@ public abstract class Ast {
                 this.type = type;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Literal &&
+                return obj == this || obj instanceof Literal &&
+                        hash == ((Literal) obj).hash &&
                         Objects.equals(literal, ((Literal) obj).literal) &&
                         Objects.equals(type, ((Literal) obj).type);
             }
 
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
             @Override
             public String toString() {
                 return "Ast.Expr.Literal{" +
@@ -512,10 +688,12 @@ public abstract class Ast {
         public static final class Group extends Expr {
 
             private final Expr expression;
+            private final int hash;
             private Environment.Type type = null;
 
             public Group(Expr expression) {
                 this.expression = expression;
+                this.hash = 31 + expression.hashCode();
             }
 
             public Expr getExpression() {
@@ -533,13 +711,24 @@ public abstract class Ast {
             public void setType(Environment.Type type) {
                 this.type = type;
             }
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Group &&
+                return obj == this || obj instanceof Group &&
+                        hash == ((Group) obj).hash &&
                         expression.equals(((Group) obj).expression) &&
                         Objects.equals(type, ((Group) obj).type);
             }
 
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
             @Override
             public String toString() {
                 return "Ast.Expr.Group{" +
@@ -555,12 +744,14 @@ public abstract class Ast {
             private final String operator;
             private final Expr left;
             private final Expr right;
+            private final int hash;
             private Environment.Type type = null;
 
             public Binary(String operator, Expr left, Expr right) {
                 this.operator = operator;
                 this.left = left;
                 this.right = right;
+                this.hash = (31 * operator.hashCode() + left.hashCode()) * 31 + right.hashCode();
             }
 
             public String getOperator() {
@@ -587,15 +778,26 @@ public abstract class Ast {
                 this.type = type;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Binary &&
+                return obj == this || obj instanceof Binary &&
+                        hash == ((Binary) obj).hash &&
                         operator.equals(((Binary) obj).operator) &&
                         left.equals(((Binary) obj).left) &&
                         right.equals(((Binary) obj).right) &&
                         Objects.equals(type, ((Binary) obj).type);
             }
 
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
             @Override
             public String toString() {
                 return "Ast.Expr.Binary{" +
@@ -612,11 +814,13 @@ public abstract class Ast {
 
             private final Optional<Expr> receiver;
             private final String name;
+            private final int hash;
             private Environment.Variable variable = null;
 
             public Access(Optional<Expr> receiver, String name) {
                 this.receiver = receiver;
                 this.name = name;
+                this.hash = 31 * receiver.hashCode() + name.hashCode();
             }
 
             public Optional<Expr> getReceiver() {
@@ -643,14 +847,25 @@ public abstract class Ast {
                 return getVariable().getType();
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Access &&
+                return obj == this || obj instanceof Access &&
+                        hash == ((Access) obj).hash &&
                         receiver.equals(((Access) obj).receiver) &&
                         name.equals(((Access) obj).name) &&
                         Objects.equals(variable, ((Access) obj).variable);
             }
 
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
             @Override
             public String toString() {
                 return "Ast.Expr.Access{" +
@@ -667,12 +882,14 @@ public abstract class Ast {
             private final Optional<Expr> receiver;
             private final String name;
             private final List<Expr> arguments;
+            private final int hash;
             private Environment.Function function = null;
 
             public Function(Optional<Expr> receiver, String name, List<Expr> arguments) {
                 this.receiver = receiver;
                 this.name = name;
                 this.arguments = arguments;
+                this.hash = (31 * receiver.hashCode() + name.hashCode()) * 31 + arguments.hashCode();
             }
 
             public Optional<Expr> getReceiver() {
@@ -703,15 +920,26 @@ public abstract class Ast {
                 return getFunction().getReturnType();
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Function &&
+                return obj == this || obj instanceof Function &&
+                        hash == ((Function) obj).hash &&
                         receiver.equals(((Function) obj).receiver) &&
                         name.equals(((Function) obj).name) &&
                         arguments.equals(((Function) obj).arguments) &&
                         Objects.equals(function, ((Function) obj).function);
             }
 
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
             @Override
             public String toString() {
                 return "Ast.Expr.Function{" +
@@ -728,40 +956,12 @@ public abstract class Ast {
 
     public interface Visitor<T> {
 
+        /**
+         * Dispatches to the method for the runtime class of the node through
+         * {@link Ast#accept(Visitor)}.
+         */
         default T visit(Ast ast) {
-            if (ast instanceof Source) {
-                return visit((Source) ast);
-            } else if (ast instanceof Field) {
-                return visit((Field) ast);
-            } else if (ast instanceof Method) {
-                return visit((Method) ast);
-            } else if (ast instanceof Stmt.Expression) {
-                return visit((Stmt.Expression) ast);
-            } else if (ast instanceof Stmt.Declaration) {
-                return visit((Stmt.Declaration) ast);
-            } else if (ast instanceof Stmt.Assignment) {
-                return visit((Stmt.Assignment) ast);
-            } else if (ast instanceof Stmt.If) {
-                return visit((Stmt.If) ast);
-            } else if (ast instanceof Stmt.For) {
-                return visit((Stmt.For) ast);
-            } else if (ast instanceof Stmt.While) {
-                return visit((Stmt.While) ast);
-            } else if (ast instanceof Stmt.Return) {
-                return visit((Stmt.Return) ast);
-            } else if (ast instanceof Expr.Literal) {
-                return visit((Expr.Literal) ast);
-            } else if (ast instanceof Expr.Group) {
-                return visit((Expr.Group) ast);
-            } else if (ast instanceof Expr.Binary) {
-                return visit((Expr.Binary) ast);
-            } else if (ast instanceof Expr.Access) {
-                return visit((Expr.Access) ast);
-            } else if (ast instanceof Expr.Function) {
-                return visit((Expr.Function) ast);
-            } else {
-                throw new AssertionError("Unimplemented AST type: " + ast.getClass().getName() + ".");
-            }
+            return ast.accept(this);
         }
 
         T visit(Source ast);
@@ -784,6 +984,14 @@ public abstract class Ast {
 
         T visit(Stmt.Return ast);
 
+        /**
+         * Error nodes only occur in a partial tree from a recovering parse,
+         * which cannot be analyzed or evaluated.
+         */
+        default T visit(Stmt.Error ast) {
+            throw new IllegalStateException("Cannot visit a statement which failed to parse: " + ast.getMessage());
+        }
+
         T visit(Expr.Literal ast);
 
         T visit(Expr.Group ast);
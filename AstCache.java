@@ -0,0 +1,165 @@
+package plc.project;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of parser output, so that unchanged sources are neither
+ * lexed nor parsed again. Entries are stored in a directory, one file per
+ * source, {@link Parser#GRAMMAR_VERSION} and {@link Lexer#VERSION}, named by
+ * the same SHA-256 hash of the source as in the {@link TokenCache} and both
+ * versions.
+ *
+ * An entry holds the tree as encoded by {@link #encode(Ast.Source)}: the
+ * nodes of its {@link FlatAst}, with names and literals in a table of
+ * constants referenced by varint node records. The header repeats the
+ * versions and the source hash, which is compared with the hash of
+ * the given source on every load, and a CRC-32 of the encoding, so that an
+ * entry is only used if it is intact and describes exactly that source.
+ *
+ * As with the {@link TokenCache}, entries are written to a temporary file and
+ * atomically moved into place, so any number of threads or processes can
+ * share a directory, and an entry which fails to load is parsed and written
+ * again.
+ */
+public final class AstCache {
+
+    private static final int MAGIC = 0x504C4341;
+    private static final int VERSION = 3;
+
+    private final Path directory;
+
+    public AstCache(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * Returns the tree of the given source as {@link Parser#parseSource()}
+     * would, loading it from the cache if possible and otherwise lexing and
+     * parsing the source and caching the result. Any {@link ParseException}
+     * is thrown as usual, and nothing is cached for that source.
+     */
+    public Ast.Source parse(String source) throws IOException {
+        byte[] digest = TokenCache.digest(source);
+        Path file = directory.resolve(hex(digest) + "-" + Parser.GRAMMAR_VERSION + "-" + Lexer.VERSION + ".ast");
+        Ast.Source cached = load(file, digest);
+        if (cached != null) {
+            return cached;
+        }
+
+        Lexer lexer = new Lexer(source);
+        Parser parser = new Parser(lexer.lexBuffer());
+        parser.setSourceMap(lexer.getSourceMap());
+        Ast.Source ast = parser.parseSource();
+        store(file, digest, encode(ast));
+        return ast;
+    }
+
+    /**
+     * Encodes a tree in the binary format of the cache, without its header.
+     */
+    public static byte[] encode(Ast.Source source) {
+        return FlatAst.of(source).write();
+    }
+
+    /**
+     * Decodes a tree encoded by {@link #encode(Ast.Source)}. Throws {@link
+     * IllegalArgumentException} if the encoding is malformed, though a
+     * corrupted encoding may still decode to a different tree.
+     */
+    public static Ast.Source decode(byte[] bytes) {
+        try {
+            return FlatAst.read(ByteBuffer.wrap(bytes)).toAst();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("Malformed tree encoding.", e);
+        }
+    }
+
+    /**
+     * Maps and decodes an entry, returning {@code null} if it does not exist
+     * or is not an intact entry for the source with the given digest.
+     */
+    private static Ast.Source load(Path file, byte[] digest) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        try {
+            if (bytes.getInt() != MAGIC || TokenCache.readVarint(bytes) != VERSION
+                    || TokenCache.readVarint(bytes) != Parser.GRAMMAR_VERSION
+                    || TokenCache.readVarint(bytes) != Lexer.VERSION) {
+                return null;
+            }
+            byte[] stored = new byte[digest.length];
+            bytes.get(stored);
+            if (!MessageDigest.isEqual(stored, digest)) {
+                return null;
+            }
+            int checksum = bytes.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            return FlatAst.read(bytes).toAst();
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                | NegativeArraySizeException e) {
+            // a damaged entry is parsed again rather than failing the parse
+            return null;
+        }
+    }
+
+    /**
+     * Writes an entry to a temporary file in the cache directory and moves it
+     * into place, replacing any invalid entry.
+     */
+    private void store(Path file, byte[] digest, byte[] encoded) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(23 + digest.length + encoded.length);
+        bytes.putInt(MAGIC);
+        TokenCache.writeVarint(bytes, VERSION);
+        TokenCache.writeVarint(bytes, Parser.GRAMMAR_VERSION);
+        TokenCache.writeVarint(bytes, Lexer.VERSION);
+        bytes.put(digest);
+        CRC32 crc = new CRC32();
+        crc.update(encoded);
+        bytes.putInt((int) crc.getValue());
+        bytes.put(encoded);
+
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                out.write(bytes.array(), 0, bytes.position());
+            }
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder builder = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            builder.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,139 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Tests for {@link AstCache}, which must return the tree of a fresh parse
+ * whether an entry is missing, intact, damaged or from another version.
+ */
+final class AstCacheTests {
+
+    private static final String SOURCE = "LET x: Integer = 1 + 2 * 3;\nDEF main(): Integer DO LET y = x.z; print(\"cafe\", 'c', 2.5, TRUE, NIL); RETURN f(y); END\n";
+
+    @Test
+    void testParseAndLoad(@TempDir Path directory) throws IOException {
+        AstCache cache = new AstCache(directory);
+        Assertions.assertEquals(parse(SOURCE), cache.parse(SOURCE));
+        Path entry = entry(directory);
+        byte[] stored = Files.readAllBytes(entry);
+        Assertions.assertEquals(parse(SOURCE), cache.parse(SOURCE));
+        Assertions.assertEquals(parse(SOURCE), new AstCache(directory).parse(SOURCE));
+        Assertions.assertArrayEquals(stored, Files.readAllBytes(entry));
+    }
+
+    @Test
+    void testEntryNamedByVersions(@TempDir Path directory) throws IOException {
+        new AstCache(directory).parse(SOURCE);
+        String name = entry(directory).getFileName().toString();
+        Assertions.assertTrue(name.endsWith("-" + Parser.GRAMMAR_VERSION + "-" + Lexer.VERSION + ".ast"), name);
+    }
+
+    @Test
+    void testVersionMismatch(@TempDir Path directory) throws IOException {
+        AstCache cache = new AstCache(directory);
+        cache.parse(SOURCE);
+        Path entry = entry(directory);
+        byte[] valid = Files.readAllBytes(entry);
+        // the magic, then the cache, grammar and lexer versions as one byte varints
+        Assertions.assertEquals(Parser.GRAMMAR_VERSION, valid[5]);
+        Assertions.assertEquals(Lexer.VERSION, valid[6]);
+        for (int i = 4; i <= 6; i++) {
+            byte[] bytes = valid.clone();
+            bytes[i]++;
+            Files.write(entry, bytes);
+            Assertions.assertEquals(parse(SOURCE), cache.parse(SOURCE));
+            Assertions.assertArrayEquals(valid, Files.readAllBytes(entry));
+        }
+    }
+
+    @Test
+    void testEntryOfAnotherSource(@TempDir Path directory) throws IOException {
+        AstCache cache = new AstCache(directory);
+        String other = "DEF main() DO RETURN 1; END";
+        cache.parse(other);
+        Path entry = entry(directory);
+        byte[] bytes = Files.readAllBytes(entry);
+        Files.delete(entry);
+        cache.parse(SOURCE);
+        Files.write(entry(directory), bytes);
+        Assertions.assertEquals(parse(SOURCE), cache.parse(SOURCE));
+    }
+
+    @Test
+    void testCorruptedEntries(@TempDir Path directory) throws IOException {
+        AstCache cache = new AstCache(directory);
+        cache.parse(SOURCE);
+        Path entry = entry(directory);
+        byte[] valid = Files.readAllBytes(entry);
+        for (int i = 0; i < valid.length; i++) {
+            byte[] bytes = valid.clone();
+            bytes[i] ^= 0x21;
+            Files.write(entry, bytes);
+            Assertions.assertEquals(parse(SOURCE), cache.parse(SOURCE));
+            Assertions.assertArrayEquals(valid, Files.readAllBytes(entry));
+        }
+    }
+
+    @Test
+    void testTruncatedEntries(@TempDir Path directory) throws IOException {
+        AstCache cache = new AstCache(directory);
+        cache.parse(SOURCE);
+        Path entry = entry(directory);
+        byte[] valid = Files.readAllBytes(entry);
+        for (int length = 0; length < valid.length; length++) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(valid, 0, bytes, 0, length);
+            Files.write(entry, bytes);
+            Assertions.assertEquals(parse(SOURCE), cache.parse(SOURCE));
+        }
+    }
+
+    @Test
+    void testInvalidSourceNotCached(@TempDir Path directory) throws IOException {
+        AstCache cache = new AstCache(directory);
+        Assertions.assertThrows(ParseException.class, () -> cache.parse("DEF main() DO y = ; END"));
+        Assertions.assertEquals(0, entries(directory).size());
+    }
+
+    @Test
+    void testEncodeDecode() {
+        Ast.Source source = parse(SOURCE);
+        Assertions.assertEquals(source, AstCache.decode(AstCache.encode(source)));
+    }
+
+    @Test
+    void testDecodeMalformed() {
+        byte[] encoded = AstCache.encode(parse(SOURCE));
+        for (int length = 0; length < encoded.length; length++) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(encoded, 0, bytes, 0, length);
+            Assertions.assertThrows(IllegalArgumentException.class, () -> AstCache.decode(bytes));
+        }
+    }
+
+    private static Ast.Source parse(String source) {
+        return new Parser(new Lexer(source).lex()).parseSource();
+    }
+
+    private static Path entry(Path directory) throws IOException {
+        List<Path> entries = entries(directory);
+        Assertions.assertEquals(1, entries.size());
+        return entries.get(0);
+    }
+
+    private static List<Path> entries(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+}
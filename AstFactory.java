@@ -0,0 +1,162 @@
+package plc.project;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates the expressions of an {@link Ast} for the {@link Parser}. The
+ * {@link #PLAIN} factory creates every expression anew. A factory created
+ * with {@link #AstFactory()} hash-conses them instead: an expression equal to
+ * one it already created is returned as that same instance, so repeated
+ * subexpressions such as {@code i + 1} are stored once and compare equal by
+ * identity. Lookups use the hash cached by each {@link Ast.Expr}, and since
+ * children are interned first, comparing a candidate only compares its
+ * direct children by identity in the common case.
+ *
+ * Expressions are matched by their structure alone. Unlike {@link
+ * Ast.Expr#equals(Object)}, the match ignores the type, variable or function
+ * set by analysis, so analyzing an interned expression does not change what
+ * it is the interned instance of.
+ *
+ * Interned expressions are shared between every place they occur, so they
+ * must not be annotated per occurrence. Use an interning factory for trees
+ * that are not analyzed, or analyze them knowing that {@link
+ * Ast.Expr.Access#setVariable(Environment.Variable)} and the like apply to
+ * all occurrences at once, or analyze them into an {@link AnalysisResult},
+ * which keeps a result for each occurrence. The argument lists of interned
+ * functions must not be modified either.
+ *
+ * An interning factory is thread safe, so it may be shared by the parsers of
+ * {@link Parser#parseSourceParallel(java.util.concurrent.ForkJoinPool)} and
+ * across parses, which then share their expressions too.
+ */
+public final class AstFactory {
+
+    public static final AstFactory PLAIN = new AstFactory(null);
+
+    private final Map<Key, Ast.Expr> interned;
+
+    /**
+     * Creates an interning factory.
+     */
+    public AstFactory() {
+        this(new ConcurrentHashMap<>());
+    }
+
+    private AstFactory(Map<Key, Ast.Expr> interned) {
+        this.interned = interned;
+    }
+
+    public Ast.Expr.Literal literal(Object literal) {
+        return intern(new Ast.Expr.Literal(literal));
+    }
+
+    public Ast.Expr.Group group(Ast.Expr expression) {
+        return intern(new Ast.Expr.Group(expression));
+    }
+
+    public Ast.Expr.Binary binary(String operator, Ast.Expr left, Ast.Expr right) {
+        return intern(new Ast.Expr.Binary(operator, left, right));
+    }
+
+    public Ast.Expr.Access access(Optional<Ast.Expr> receiver, String name) {
+        return intern(new Ast.Expr.Access(receiver, name));
+    }
+
+    public Ast.Expr.Function function(Optional<Ast.Expr> receiver, String name, List<Ast.Expr> arguments) {
+        return intern(new Ast.Expr.Function(receiver, name, arguments));
+    }
+
+    /**
+     * Returns the expression equal to the given one which was interned
+     * first, interning the given one if there is none. A {@link #PLAIN}
+     * factory returns the given expression.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Ast.Expr> T intern(T expr) {
+        if (interned == null) {
+            return expr;
+        }
+        Ast.Expr existing = interned.putIfAbsent(new Key(expr), expr);
+        return existing != null ? (T) existing : expr;
+    }
+
+    /**
+     * Returns the number of distinct expressions interned so far.
+     */
+    public int size() {
+        return interned == null ? 0 : interned.size();
+    }
+
+    /**
+     * Returns true if two expressions have the same structure, ignoring the
+     * results of analysis.
+     */
+    private static boolean same(Ast.Expr first, Ast.Expr second) {
+        if (first == second) {
+            return true;
+        } else if (first.hashCode() != second.hashCode() || first.getClass() != second.getClass()) {
+            return false;
+        } else if (first instanceof Ast.Expr.Literal) {
+            return Objects.equals(((Ast.Expr.Literal) first).getLiteral(), ((Ast.Expr.Literal) second).getLiteral());
+        } else if (first instanceof Ast.Expr.Group) {
+            return same(((Ast.Expr.Group) first).getExpression(), ((Ast.Expr.Group) second).getExpression());
+        } else if (first instanceof Ast.Expr.Binary) {
+            Ast.Expr.Binary binary = (Ast.Expr.Binary) second;
+            return ((Ast.Expr.Binary) first).getOperator().equals(binary.getOperator())
+                    && same(((Ast.Expr.Binary) first).getLeft(), binary.getLeft())
+                    && same(((Ast.Expr.Binary) first).getRight(), binary.getRight());
+        } else if (first instanceof Ast.Expr.Access) {
+            Ast.Expr.Access access = (Ast.Expr.Access) second;
+            return ((Ast.Expr.Access) first).getName().equals(access.getName())
+                    && same(((Ast.Expr.Access) first).getReceiver(), access.getReceiver());
+        } else if (first instanceof Ast.Expr.Function) {
+            Ast.Expr.Function function = (Ast.Expr.Function) second;
+            List<Ast.Expr> arguments = ((Ast.Expr.Function) first).getArguments();
+            if (!((Ast.Expr.Function) first).getName().equals(function.getName())
+                    || !same(((Ast.Expr.Function) first).getReceiver(), function.getReceiver())
+                    || arguments.size() != function.getArguments().size()) {
+                return false;
+            }
+            for (int i = 0; i < arguments.size(); i++) {
+                if (!same(arguments.get(i), function.getArguments().get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return first.equals(second);
+    }
+
+    private static boolean same(Optional<Ast.Expr> first, Optional<Ast.Expr> second) {
+        return first.isPresent() ? second.isPresent() && same(first.get(), second.get()) : !second.isPresent();
+    }
+
+    /**
+     * The key of an interned expression, comparing it with {@link
+     * #same(Ast.Expr, Ast.Expr)}.
+     */
+    private static final class Key {
+
+        private final Ast.Expr expr;
+
+        private Key(Ast.Expr expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && same(expr, ((Key) obj).expr);
+        }
+
+        @Override
+        public int hashCode() {
+            return expr.hashCode();
+        }
+
+    }
+
+}
@@ -0,0 +1,50 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Tests for interning with an {@link AstFactory}, which matches expressions
+ * by structure while equality also compares the results of analysis.
+ */
+final class AstFactoryTests {
+
+    @Test
+    void testEqualExpressionsInterned() {
+        AstFactory factory = new AstFactory();
+        Ast.Expr first = factory.binary("+", factory.access(Optional.empty(), "i"), factory.literal(BigInteger.ONE));
+        Ast.Expr second = factory.binary("+", factory.access(Optional.empty(), "i"), factory.literal(BigInteger.ONE));
+        Assertions.assertSame(first, second);
+        Assertions.assertEquals(3, factory.size());
+    }
+
+    @Test
+    void testAnalyzedExpressionStillInterned() {
+        AstFactory factory = new AstFactory();
+        Ast.Expr.Literal literal = factory.literal(BigInteger.ONE);
+        literal.setType(Environment.Type.INTEGER);
+        Assertions.assertSame(literal, factory.literal(BigInteger.ONE));
+    }
+
+    @Test
+    void testEqualityComparesAnalysis() {
+        Ast.Expr.Literal analyzed = new Ast.Expr.Literal(BigInteger.ONE);
+        analyzed.setType(Environment.Type.INTEGER);
+        Assertions.assertNotEquals(new Ast.Expr.Literal(BigInteger.ONE), analyzed);
+        Assertions.assertEquals(new Ast.Expr.Literal(BigInteger.ONE).hashCode(), analyzed.hashCode());
+    }
+
+    @Test
+    void testUninternedChildrenMatched() {
+        AstFactory factory = new AstFactory();
+        Ast.Expr.Function function = factory.function(Optional.empty(), "f", Arrays.asList(factory.literal("a")));
+        Ast.Expr.Function fresh = new Ast.Expr.Function(Optional.empty(), "f", Arrays.asList(new Ast.Expr.Literal("a")));
+        Assertions.assertSame(function, factory.intern(fresh));
+        Assertions.assertNotSame(function, factory.intern(new Ast.Expr.Function(Optional.empty(), "f", Arrays.asList(new Ast.Expr.Literal("b")))));
+    }
+
+}
@@ -0,0 +1,1139 @@
+package plc.project;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A compact encoding of an {@link Ast.Source}, with the nodes stored in a few
+ * flat arrays rather than as separate objects.
+ *
+ * Each node is identified by an {@code int}, and nodes are numbered in
+ * post-order, so that the children of a node come before it and every
+ * subtree is a contiguous range of nodes ending at its root. Per node, the
+ * arena stores its {@link Kind}, the offset of its record in a shared
+ * {@code int[]}, its token span and a type slot. The record holds the
+ * node's children and counted lists of children as node numbers, and its
+ * names, operators and literals as indices into a table of constants, in
+ * which equal values are stored once. Absent children and names are -1.
+ *
+ * Nodes are read with the accessors below, named after the getters of the
+ * corresponding {@link Ast} classes, which take the node to read and throw
+ * {@link IllegalArgumentException} if it is of a kind without that
+ * property. {@link #toAst(int)} materializes a subtree as {@link Ast} nodes.
+ */
+public final class FlatAst {
+
+    public enum Kind {
+        SOURCE, FIELD, METHOD, EXPRESSION, DECLARATION, ASSIGNMENT, IF, FOR, WHILE, RETURN, ERROR,
+        LITERAL, GROUP, BINARY, ACCESS, FUNCTION
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int STRING = 3;
+    private static final int CHARACTER = 4;
+    private static final int INTEGER = 5;
+    private static final int DECIMAL = 6;
+    private static final int UTF_16 = 7;
+
+    private final byte[] kinds;
+    private final int[] offsets;
+    private final long[] spans;
+    private final int[] data;
+    private final Object[] constants;
+    private final int size;
+    private int[] types;
+
+    private FlatAst(byte[] kinds, int[] offsets, long[] spans, int[] data, Object[] constants, int size) {
+        this.kinds = kinds;
+        this.offsets = offsets;
+        this.spans = spans;
+        this.data = data;
+        this.constants = constants;
+        this.size = size;
+    }
+
+    /**
+     * Encodes the given source. Its nodes have no token span, since {@link
+     * Ast} nodes do not record one; see {@link Parser#parseSourceFlat()}.
+     */
+    public static FlatAst of(Ast.Source source) {
+        return of(source, new Builder());
+    }
+
+    private static FlatAst of(Ast.Source source, Builder builder) {
+        int[] fields = new int[source.getFields().size()];
+        int[] methods = new int[source.getMethods().size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = builder.add(source.getFields().get(i), null, -1L);
+        }
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = builder.add(source.getMethods().get(i), null, -1L);
+        }
+        return builder.build(fields, methods, -1L);
+    }
+
+    /**
+     * Numbers the nodes of the given tree as {@link #of(Ast.Source)} does,
+     * without modifying it. The root need not be a source. A node which
+     * occurs more than once, such as an interned expression, has a number
+     * for each occurrence.
+     */
+    static Numbering number(Ast root) {
+        Builder builder = new Builder(true);
+        if (root instanceof Ast.Source) {
+            of((Ast.Source) root, builder);
+            builder.record(root, 0);
+        } else {
+            builder.add(root, null, -1L);
+        }
+        return new Numbering(builder.asts.toArray(new Ast[0]), Arrays.copyOf(builder.starts, builder.asts.size()));
+    }
+
+    /**
+     * The numbering of a tree from {@link #number(Ast)}.
+     */
+    static final class Numbering {
+
+        /**
+         * The node of each number.
+         */
+        final Ast[] nodes;
+
+        /**
+         * The first number in the subtree of each number. Since subtrees are
+         * numbered contiguously, a number is within the subtree of another
+         * if it is between the other's start and the other itself.
+         */
+        final int[] starts;
+
+        private Numbering(Ast[] nodes, int[] starts) {
+            this.nodes = nodes;
+            this.starts = starts;
+        }
+
+    }
+
+    /**
+     * Returns the number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the {@link Kind#SOURCE} node, which is the last one.
+     */
+    public int getRoot() {
+        return size - 1;
+    }
+
+    public Kind getKind(int node) {
+        return KINDS[kinds[node]];
+    }
+
+    /**
+     * Returns the index of the first token of a node, or -1 if unknown.
+     */
+    public int getStart(int node) {
+        return (int) (spans[node] >> 32);
+    }
+
+    /**
+     * Returns the index after the last token of a node, or -1 if unknown.
+     */
+    public int getEnd(int node) {
+        return (int) spans[node];
+    }
+
+    /**
+     * Returns the type slot of a node, which is -1 until set. The arena does
+     * not interpret it; it is meant for an index into a table of types kept
+     * by whoever analyzes the tree.
+     */
+    public int getTypeSlot(int node) {
+        return types == null ? -1 : types[node];
+    }
+
+    public void setTypeSlot(int node, int slot) {
+        if (types == null) {
+            types = new int[size];
+            Arrays.fill(types, -1);
+        }
+        types[node] = slot;
+    }
+
+    public int getFieldCount(int node) {
+        return data[offset(node, Kind.SOURCE)];
+    }
+
+    public int getField(int node, int index) {
+        return item(offset(node, Kind.SOURCE), index);
+    }
+
+    public int getMethodCount(int node) {
+        return data[skip(offset(node, Kind.SOURCE))];
+    }
+
+    public int getMethod(int node, int index) {
+        return item(skip(offset(node, Kind.SOURCE)), index);
+    }
+
+    public String getName(int node) {
+        switch (getKind(node)) {
+            case FIELD: case METHOD: case DECLARATION: case FOR:
+                return (String) constants[data[offsets[node]]];
+            case ACCESS: case FUNCTION:
+                return (String) constants[data[offsets[node] + 1]];
+            default:
+                throw unsupported(node, "name");
+        }
+    }
+
+    /**
+     * Returns the type name of a field or declaration, or {@code null} if a
+     * declaration has none.
+     */
+    public String getTypeName(int node) {
+        switch (getKind(node)) {
+            case FIELD: case DECLARATION:
+                return constant(data[offsets[node] + 1]);
+            default:
+                throw unsupported(node, "type name");
+        }
+    }
+
+    public int getParameterCount(int node) {
+        return data[offset(node, Kind.METHOD) + 2];
+    }
+
+    public String getParameter(int node, int index) {
+        return (String) constants[item(offset(node, Kind.METHOD) + 2, index)];
+    }
+
+    public String getParameterTypeName(int node, int index) {
+        return (String) constants[item(skip(offset(node, Kind.METHOD) + 2), index)];
+    }
+
+    /**
+     * Returns the return type name of a method, or {@code null} if it has
+     * none.
+     */
+    public String getReturnTypeName(int node) {
+        return constant(data[offset(node, Kind.METHOD) + 1]);
+    }
+
+    /**
+     * Returns the number of statements in the body of a method, {@code FOR}
+     * or {@code WHILE}, or in the then branch of an {@code IF}.
+     */
+    public int getStatementCount(int node) {
+        return data[statements(node)];
+    }
+
+    public int getStatement(int node, int index) {
+        return item(statements(node), index);
+    }
+
+    public int getElseStatementCount(int node) {
+        return data[skip(offset(node, Kind.IF) + 1)];
+    }
+
+    public int getElseStatement(int node, int index) {
+        return item(skip(offset(node, Kind.IF) + 1), index);
+    }
+
+    /**
+     * Returns the expression of an expression statement or a group.
+     */
+    public int getExpression(int node) {
+        switch (getKind(node)) {
+            case EXPRESSION: case GROUP:
+                return data[offsets[node]];
+            default:
+                throw unsupported(node, "expression");
+        }
+    }
+
+    /**
+     * Returns the value of a field, declaration, assignment, {@code FOR} or
+     * {@code RETURN}, or -1 if a field or declaration has none.
+     */
+    public int getValue(int node) {
+        switch (getKind(node)) {
+            case FIELD: case DECLARATION:
+                return data[offsets[node] + 2];
+            case ASSIGNMENT: case FOR:
+                return data[offsets[node] + 1];
+            case RETURN:
+                return data[offsets[node]];
+            default:
+                throw unsupported(node, "value");
+        }
+    }
+
+    /**
+     * Returns the receiver of an assignment, access or function, or -1 if an
+     * access or function has none.
+     */
+    public int getReceiver(int node) {
+        switch (getKind(node)) {
+            case ASSIGNMENT: case ACCESS: case FUNCTION:
+                return data[offsets[node]];
+            default:
+                throw unsupported(node, "receiver");
+        }
+    }
+
+    public int getCondition(int node) {
+        switch (getKind(node)) {
+            case IF: case WHILE:
+                return data[offsets[node]];
+            default:
+                throw unsupported(node, "condition");
+        }
+    }
+
+    public String getMessage(int node) {
+        return (String) constants[data[offset(node, Kind.ERROR)]];
+    }
+
+    public int getIndex(int node) {
+        return data[offset(node, Kind.ERROR) + 1];
+    }
+
+    public Object getLiteral(int node) {
+        return constants[data[offset(node, Kind.LITERAL)]];
+    }
+
+    public String getOperator(int node) {
+        return (String) constants[data[offset(node, Kind.BINARY)]];
+    }
+
+    public int getLeft(int node) {
+        return data[offset(node, Kind.BINARY) + 1];
+    }
+
+    public int getRight(int node) {
+        return data[offset(node, Kind.BINARY) + 2];
+    }
+
+    public int getArgumentCount(int node) {
+        return data[offset(node, Kind.FUNCTION) + 2];
+    }
+
+    public int getArgument(int node, int index) {
+        return item(offset(node, Kind.FUNCTION) + 2, index);
+    }
+
+    /**
+     * Materializes the whole source as {@link Ast} nodes.
+     */
+    public Ast.Source toAst() {
+        return (Ast.Source) toAst(getRoot());
+    }
+
+    /**
+     * Materializes the subtree of a node as {@link Ast} nodes, which are
+     * equal to the nodes it was encoded from. The subtree is built bottom up
+     * in a single pass over its range of nodes, without recursion.
+     */
+    public Ast toAst(int node) {
+        int first = node;
+        for (int child = firstChild(node); child >= 0; child = firstChild(child)) {
+            first = child;
+        }
+
+        Ast[] built = new Ast[node - first + 1];
+        for (int i = first; i <= node; i++) {
+            built[i - first] = materialize(i, built, first);
+        }
+        return built[node - first];
+    }
+
+    private Ast materialize(int node, Ast[] built, int first) {
+        int offset = offsets[node];
+        switch (getKind(node)) {
+            case SOURCE:
+                List<Ast.Field> fields = list(offset, built, first);
+                List<Ast.Method> methods = list(skip(offset), built, first);
+                return new Ast.Source(fields, methods);
+            case FIELD:
+                return new Ast.Field(constant(data[offset]), constant(data[offset + 1]), optional(data[offset + 2], built, first));
+            case METHOD:
+                int parameters = offset + 2;
+                int parameterTypeNames = skip(parameters);
+                return new Ast.Method(constant(data[offset]), constants(parameters), constants(parameterTypeNames),
+                        Optional.ofNullable(constant(data[offset + 1])), list(skip(parameterTypeNames), built, first));
+            case EXPRESSION:
+                return new Ast.Stmt.Expression(child(data[offset], built, first));
+            case DECLARATION:
+                return new Ast.Stmt.Declaration(constant(data[offset]), Optional.ofNullable(constant(data[offset + 1])),
+                        optional(data[offset + 2], built, first));
+            case ASSIGNMENT:
+                return new Ast.Stmt.Assignment(child(data[offset], built, first), child(data[offset + 1], built, first));
+            case IF:
+                return new Ast.Stmt.If(child(data[offset], built, first), list(offset + 1, built, first),
+                        list(skip(offset + 1), built, first));
+            case FOR:
+                return new Ast.Stmt.For(constant(data[offset]), child(data[offset + 1], built, first), list(offset + 2, built, first));
+            case WHILE:
+                return new Ast.Stmt.While(child(data[offset], built, first), list(offset + 1, built, first));
+            case RETURN:
+                return new Ast.Stmt.Return(child(data[offset], built, first));
+            case ERROR:
+                return new Ast.Stmt.Error(constant(data[offset]), data[offset + 1]);
+            case LITERAL:
+                return new Ast.Expr.Literal(constants[data[offset]]);
+            case GROUP:
+                return new Ast.Expr.Group(child(data[offset], built, first));
+            case BINARY:
+                return new Ast.Expr.Binary(constant(data[offset]), child(data[offset + 1], built, first),
+                        child(data[offset + 2], built, first));
+            case ACCESS:
+                return new Ast.Expr.Access(optional(data[offset], built, first), constant(data[offset + 1]));
+            default:
+                return new Ast.Expr.Function(optional(data[offset], built, first), constant(data[offset + 1]),
+                        list(offset + 2, built, first));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Ast> T child(int node, Ast[] built, int first) {
+        return (T) built[node - first];
+    }
+
+    private static <T extends Ast> Optional<T> optional(int node, Ast[] built, int first) {
+        return node < 0 ? Optional.empty() : Optional.of(child(node, built, first));
+    }
+
+    private <T extends Ast> List<T> list(int offset, Ast[] built, int first) {
+        List<T> list = new ArrayList<>(data[offset]);
+        for (int i = 1; i <= data[offset]; i++) {
+            list.add(child(data[offset + i], built, first));
+        }
+        return list;
+    }
+
+    private List<String> constants(int offset) {
+        List<String> list = new ArrayList<>(data[offset]);
+        for (int i = 1; i <= data[offset]; i++) {
+            list.add(constant(data[offset + i]));
+        }
+        return list;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T constant(int index) {
+        return index < 0 ? null : (T) constants[index];
+    }
+
+    /**
+     * Returns the node whose subtree comes first, or -1 for a leaf.
+     */
+    private int firstChild(int node) {
+        int offset = offsets[node];
+        switch (getKind(node)) {
+            case SOURCE:
+                return data[offset] > 0 ? data[offset + 1] : data[skip(offset)] > 0 ? data[skip(offset) + 1] : -1;
+            case METHOD:
+                return getStatementCount(node) > 0 ? getStatement(node, 0) : -1;
+            case FIELD: case DECLARATION:
+                return data[offset + 2];
+            case EXPRESSION: case ASSIGNMENT: case IF: case WHILE: case RETURN: case GROUP: case ACCESS:
+                return data[offset];
+            case FOR: case BINARY:
+                return data[offset + 1];
+            case FUNCTION:
+                return data[offset] >= 0 ? data[offset] : data[offset + 2] > 0 ? data[offset + 3] : -1;
+            default:
+                return -1;
+        }
+    }
+
+    private int statements(int node) {
+        switch (getKind(node)) {
+            case METHOD:
+                return skip(skip(offsets[node] + 2));
+            case IF: case WHILE:
+                return offsets[node] + 1;
+            case FOR:
+                return offsets[node] + 2;
+            default:
+                throw unsupported(node, "statements");
+        }
+    }
+
+    private int offset(int node, Kind kind) {
+        if (kinds[node] != kind.ordinal()) {
+            throw unsupported(node, kind.name().toLowerCase() + " property");
+        }
+        return offsets[node];
+    }
+
+    /**
+     * Returns the offset after a counted list.
+     */
+    private int skip(int offset) {
+        return offset + data[offset] + 1;
+    }
+
+    private int item(int offset, int index) {
+        if (index < 0 || index >= data[offset]) {
+            throw new IndexOutOfBoundsException("Index " + index + " is not in 0.." + data[offset] + ".");
+        }
+        return data[offset + 1 + index];
+    }
+
+    private IllegalArgumentException unsupported(int node, String property) {
+        return new IllegalArgumentException("Node " + node + " (" + getKind(node) + ") has no " + property + ".");
+    }
+
+    /**
+     * Encodes the arena without its token spans, see {@link #read(ByteBuffer)}.
+     * The constants are written first as a table of tagged values, with
+     * strings as their UTF-8 bytes and numbers as their two's complement
+     * bytes. Then follow the kind of each node, the length of each record
+     * and the records, with every count and int as a varint. A child is
+     * written as its distance below its parent, which is usually small,
+     * rather than as its node number. Throws {@link
+     * IllegalArgumentException} for a literal the parser cannot produce.
+     */
+    byte[] write() {
+        byte[][] encoded = new byte[constants.length][];
+        int bound = 15 + size * 6 + data.length * 5;
+        for (int i = 0; i < constants.length; i++) {
+            Object constant = constants[i];
+            if (constant instanceof String) {
+                String string = (String) constant;
+                encoded[i] = string.getBytes(StandardCharsets.UTF_8);
+                if (!new String(encoded[i], StandardCharsets.UTF_8).equals(string)) {
+                    // unpaired surrogates are not kept by UTF-8, so those strings are written as UTF-16 units
+                    encoded[i] = null;
+                    bound += string.length() * 3;
+                }
+            } else if (constant instanceof BigInteger) {
+                encoded[i] = ((BigInteger) constant).toByteArray();
+            } else if (constant instanceof BigDecimal) {
+                encoded[i] = ((BigDecimal) constant).unscaledValue().toByteArray();
+            } else if (constant != null && !(constant instanceof Boolean) && !(constant instanceof Character)) {
+                throw new IllegalArgumentException("Cannot encode a literal of type " + constant.getClass().getName() + ".");
+            }
+            bound += 11 + (encoded[i] != null ? encoded[i].length : 0);
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(bound);
+        TokenCache.writeVarint(bytes, constants.length);
+        for (int i = 0; i < constants.length; i++) {
+            Object constant = constants[i];
+            int tag = constant == null ? NULL : constant instanceof Boolean ? ((Boolean) constant ? TRUE : FALSE)
+                    : constant instanceof String ? (encoded[i] != null ? STRING : UTF_16)
+                    : constant instanceof Character ? CHARACTER : constant instanceof BigInteger ? INTEGER : DECIMAL;
+            bytes.put((byte) tag);
+            if (tag == UTF_16) {
+                String string = (String) constant;
+                TokenCache.writeVarint(bytes, string.length());
+                for (int j = 0; j < string.length(); j++) {
+                    TokenCache.writeVarint(bytes, string.charAt(j));
+                }
+            } else if (tag == CHARACTER) {
+                TokenCache.writeVarint(bytes, (Character) constant);
+            } else if (encoded[i] != null) {
+                if (tag == DECIMAL) {
+                    TokenCache.writeVarint(bytes, ((BigDecimal) constant).scale());
+                }
+                TokenCache.writeVarint(bytes, encoded[i].length);
+                bytes.put(encoded[i]);
+            }
+        }
+        TokenCache.writeVarint(bytes, size);
+        bytes.put(kinds, 0, size);
+        for (int node = 0; node < size; node++) {
+            TokenCache.writeVarint(bytes, (node + 1 < size ? offsets[node + 1] : data.length) - offsets[node]);
+        }
+        // absent children and names are -1, so every value is shifted by one
+        BitSet children = validate(false);
+        for (int node = 0, i = 0; node < size; node++) {
+            for (int end = node + 1 < size ? offsets[node + 1] : data.length; i < end; i++) {
+                int value = children.get(i) && data[i] >= 0 ? node - 1 - data[i] : data[i];
+                TokenCache.writeVarint(bytes, value + 1);
+            }
+        }
+        return Arrays.copyOf(bytes.array(), bytes.position());
+    }
+
+    /**
+     * Decodes an arena written by {@link #write()}, in which every node has
+     * no token span. Throws {@link IllegalArgumentException} or {@link
+     * java.nio.BufferUnderflowException} if the encoding is malformed, as
+     * far as can be checked without decoding each record. Records are only
+     * validated when they are read, so an encoding from an untrusted source
+     * must be checked for integrity first.
+     */
+    static FlatAst read(ByteBuffer bytes) {
+        Object[] constants = new Object[count(bytes, 1)];
+        for (int i = 0; i < constants.length; i++) {
+            int tag = bytes.get();
+            if (tag == NULL) {
+                constants[i] = null;
+            } else if (tag == TRUE || tag == FALSE) {
+                constants[i] = tag == TRUE;
+            } else if (tag == STRING) {
+                byte[] encoded = new byte[count(bytes, 1)];
+                bytes.get(encoded);
+                constants[i] = new String(encoded, StandardCharsets.UTF_8);
+            } else if (tag == UTF_16) {
+                char[] chars = new char[count(bytes, 1)];
+                for (int j = 0; j < chars.length; j++) {
+                    chars[j] = (char) TokenCache.readVarint(bytes);
+                }
+                constants[i] = new String(chars);
+            } else if (tag == CHARACTER) {
+                constants[i] = (char) TokenCache.readVarint(bytes);
+            } else if (tag == INTEGER || tag == DECIMAL) {
+                int scale = tag == DECIMAL ? TokenCache.readVarint(bytes) : 0;
+                byte[] encoded = new byte[count(bytes, 1)];
+                bytes.get(encoded);
+                if (encoded.length == 0) {
+                    throw new IllegalArgumentException("Empty number constant.");
+                }
+                BigInteger value = new BigInteger(encoded);
+                constants[i] = tag == INTEGER ? value : new BigDecimal(value, scale);
+            } else {
+                throw new IllegalArgumentException("Unknown constant tag " + tag + ".");
+            }
+        }
+
+        int size = count(bytes, 2);
+        if (size == 0) {
+            throw new IllegalArgumentException("An arena has at least its source node.");
+        }
+        byte[] kinds = new byte[size];
+        bytes.get(kinds);
+        int[] offsets = new int[size];
+        int length = 0;
+        for (int node = 0; node < size; node++) {
+            if (kinds[node] < 0 || kinds[node] >= KINDS.length) {
+                throw new IllegalArgumentException("Unknown node kind " + kinds[node] + ".");
+            }
+            offsets[node] = length;
+            length += count(bytes, 1);
+        }
+        if (length > bytes.remaining()) {
+            throw new IllegalArgumentException("Records are longer than the encoding.");
+        }
+        int[] data = new int[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = TokenCache.readVarint(bytes) - 1;
+        }
+        if (bytes.hasRemaining()) {
+            throw new IllegalArgumentException("Trailing bytes after the records.");
+        }
+
+        long[] spans = new long[size];
+        Arrays.fill(spans, -1L);
+        FlatAst flat = new FlatAst(kinds, offsets, spans, data, constants, size);
+        flat.validate(true);
+        return flat;
+    }
+
+    /**
+     * Checks that every record has exactly the layout of its kind, with
+     * counts in range, names which are string constants and children which
+     * are earlier nodes of a kind allowed there. Nodes may still be shared
+     * or left out of the tree, but materializing it cannot loop or produce
+     * an {@link Ast} of the wrong class. If {@code relative}, children are
+     * first converted from their distance below the node, as written by
+     * {@link #write()}. Returns the offsets in the records which are
+     * children.
+     */
+    private BitSet validate(boolean relative) {
+        BitSet children = new BitSet(data.length);
+        if (getKind(size - 1) != Kind.SOURCE) {
+            throw new IllegalArgumentException("The last node is not the source.");
+        }
+        for (int node = 0; node < size; node++) {
+            int offset = offsets[node];
+            int end = node + 1 < size ? offsets[node + 1] : data.length;
+            switch (getKind(node)) {
+                case SOURCE:
+                    offset = children(children, relative, node, offset, end, Kind.FIELD, Kind.FIELD);
+                    offset = children(children, relative, node, offset, end, Kind.METHOD, Kind.METHOD);
+                    break;
+                case FIELD:
+                    offset = name(offset, end, false);
+                    offset = name(offset, end, true);
+                    offset = child(children, relative, node, offset, end, true, Kind.LITERAL, Kind.FUNCTION);
+                    break;
+                case METHOD:
+                    offset = name(offset, end, false);
+                    offset = name(offset, end, true);
+                    offset = names(offset, end);
+                    offset = names(offset, end);
+                    offset = children(children, relative, node, offset, end, Kind.EXPRESSION, Kind.ERROR);
+                    break;
+                case DECLARATION:
+                    offset = name(offset, end, false);
+                    offset = name(offset, end, true);
+                    offset = child(children, relative, node, offset, end, true, Kind.LITERAL, Kind.FUNCTION);
+                    break;
+                case ASSIGNMENT: case BINARY:
+                    if (getKind(node) == Kind.BINARY) {
+                        offset = name(offset, end, false);
+                    }
+                    offset = child(children, relative, node, offset, end, false, Kind.LITERAL, Kind.FUNCTION);
+                    offset = child(children, relative, node, offset, end, false, Kind.LITERAL, Kind.FUNCTION);
+                    break;
+                case IF:
+                    offset = child(children, relative, node, offset, end, false, Kind.LITERAL, Kind.FUNCTION);
+                    offset = children(children, relative, node, offset, end, Kind.EXPRESSION, Kind.ERROR);
+                    offset = children(children, relative, node, offset, end, Kind.EXPRESSION, Kind.ERROR);
+                    break;
+                case FOR:
+                    offset = name(offset, end, false);
+                    offset = child(children, relative, node, offset, end, false, Kind.LITERAL, Kind.FUNCTION);
+                    offset = children(children, relative, node, offset, end, Kind.EXPRESSION, Kind.ERROR);
+                    break;
+                case WHILE:
+                    offset = child(children, relative, node, offset, end, false, Kind.LITERAL, Kind.FUNCTION);
+                    offset = children(children, relative, node, offset, end, Kind.EXPRESSION, Kind.ERROR);
+                    break;
+                case EXPRESSION: case RETURN: case GROUP:
+                    offset = child(children, relative, node, offset, end, false, Kind.LITERAL, Kind.FUNCTION);
+                    break;
+                case ERROR:
+                    offset = name(offset, end, false) + 1;
+                    break;
+                case LITERAL:
+                    if (offset >= end || data[offset] < 0 || data[offset] >= constants.length) {
+                        throw new IllegalArgumentException("Node " + node + " has no literal.");
+                    }
+                    offset++;
+                    break;
+                default:
+                    offset = child(children, relative, node, offset, end, true, Kind.LITERAL, Kind.FUNCTION);
+                    offset = name(offset, end, false);
+                    if (getKind(node) == Kind.FUNCTION) {
+                        offset = children(children, relative, node, offset, end, Kind.LITERAL, Kind.FUNCTION);
+                    }
+                    break;
+            }
+            if (offset != end) {
+                throw new IllegalArgumentException("Node " + node + " (" + getKind(node) + ") has a malformed record.");
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Checks that a name is a string constant, or absent if optional.
+     */
+    private int name(int offset, int end, boolean optional) {
+        if (offset >= end || !(optional && data[offset] == -1 || data[offset] >= 0 && data[offset] < constants.length
+                && (constants[data[offset]] instanceof String || optional && constants[data[offset]] == null))) {
+            throw new IllegalArgumentException("Malformed name at " + offset + ".");
+        }
+        return offset + 1;
+    }
+
+    private int names(int offset, int end) {
+        int count = count(offset, end);
+        for (int i = 1; i <= count; i++) {
+            name(offset + i, end, false);
+        }
+        return offset + count + 1;
+    }
+
+    private int child(BitSet children, boolean relative, int node, int offset, int end, boolean optional,
+                      Kind lowest, Kind highest) {
+        if (offset >= end) {
+            throw new IllegalArgumentException("Node " + node + " has a malformed record.");
+        }
+        if (relative && data[offset] >= 0) {
+            data[offset] = node - 1 - data[offset];
+        }
+        int child = data[offset];
+        if (!(optional && child == -1 || child >= 0 && child < node
+                && kinds[child] >= lowest.ordinal() && kinds[child] <= highest.ordinal())) {
+            throw new IllegalArgumentException("Node " + node + " has an invalid child " + child + ".");
+        }
+        children.set(offset);
+        return offset + 1;
+    }
+
+    private int children(BitSet children, boolean relative, int node, int offset, int end, Kind lowest, Kind highest) {
+        int count = count(offset, end);
+        for (int i = 1; i <= count; i++) {
+            child(children, relative, node, offset + i, end, false, lowest, highest);
+        }
+        return offset + count + 1;
+    }
+
+    private int count(int offset, int end) {
+        if (offset >= end || data[offset] < 0 || data[offset] > end - offset - 1) {
+            throw new IllegalArgumentException("Malformed count at " + offset + ".");
+        }
+        return data[offset];
+    }
+
+    /**
+     * Reads a count, which is at most the remaining bytes divided by the
+     * least number of bytes per counted item.
+     */
+    private static int count(ByteBuffer bytes, int least) {
+        int count = TokenCache.readVarint(bytes);
+        if (count < 0 || count > bytes.remaining() / least) {
+            throw new IllegalArgumentException("Count " + count + " exceeds the encoding.");
+        }
+        return count;
+    }
+
+    /**
+     * Appends nodes to a new arena. Members are added one at a time, so that
+     * a parser only needs the {@link Ast} of the member being added.
+     */
+    static final class Builder {
+
+        private byte[] kinds = new byte[64];
+        private int[] offsets = new int[64];
+        private long[] spans = new long[64];
+        private int[] data = new int[256];
+        private final Map<Object, Integer> constantIndices = new HashMap<>();
+        private final List<Object> constants = new ArrayList<>();
+        private final List<Ast> asts;
+        private int[] starts;
+        private int size = 0;
+        private int length = 0;
+
+        // the traversal stack of add, and the nodes added for its children
+        private Ast[] stack = new Ast[16];
+        private boolean[] entered = new boolean[16];
+        private int[] children = new int[16];
+
+        Builder() {
+            this(false);
+        }
+
+        /**
+         * Creates a builder which, if {@code record}, records the {@link Ast}
+         * of each node added by {@link #add(Ast, Map, long)} in {@link
+         * #asts}, in order, and the first node of its subtree in {@link
+         * #starts}.
+         */
+        Builder(boolean record) {
+            this.asts = record ? new ArrayList<>() : null;
+            this.starts = record ? new int[64] : null;
+        }
+
+        private void record(Ast ast, int start) {
+            if (asts.size() == starts.length) {
+                starts = Arrays.copyOf(starts, asts.size() * 2);
+            }
+            starts[asts.size()] = start;
+            asts.add(ast);
+        }
+
+        /**
+         * Adds a member and all of its descendants and returns its node. The
+         * spans of nodes are looked up in {@code spans}, which may be
+         * {@code null}, except for that of the member itself.
+         */
+        int add(Ast member, Map<Ast, Long> spans, long span) {
+            int top = 0;
+            int count = 0;
+            stack[top] = member;
+            entered[top++] = false;
+            while (top > 0) {
+                Ast ast = stack[top - 1];
+                if (!entered[top - 1]) {
+                    entered[top - 1] = true;
+                    top = pushChildren(ast, top);
+                    continue;
+                }
+                top--;
+
+                int added = added(ast);
+                count -= added;
+                int node = emit(ast, count, spans == null || ast == member ? span : spans.getOrDefault(ast, -1L));
+                if (asts != null) {
+                    record(ast, added > 0 ? starts[children[count]] : node);
+                }
+                if (count == children.length) {
+                    children = Arrays.copyOf(children, count * 2);
+                }
+                children[count++] = node;
+            }
+            return children[0];
+        }
+
+        /**
+         * Adds the source node of the members added so far, and returns the
+         * arena.
+         */
+        FlatAst build(int[] fields, int[] methods, long span) {
+            int node = node(Kind.SOURCE, span);
+            put(fields.length);
+            for (int field : fields) {
+                put(field);
+            }
+            put(methods.length);
+            for (int method : methods) {
+                put(method);
+            }
+            return new FlatAst(Arrays.copyOf(kinds, size), Arrays.copyOf(offsets, size), Arrays.copyOf(spans, size),
+                    Arrays.copyOf(data, length), constants.toArray(), node + 1);
+        }
+
+        /**
+         * Pushes the children of a node so that they are popped in order.
+         */
+        private int pushChildren(Ast ast, int top) {
+            int start = top;
+            if (ast instanceof Ast.Method) {
+                top = push(((Ast.Method) ast).getStatements(), top);
+            } else if (ast instanceof Ast.Field) {
+                top = push(((Ast.Field) ast).getValue().orElse(null), top);
+            } else if (ast instanceof Ast.Stmt.Expression) {
+                top = push(((Ast.Stmt.Expression) ast).getExpression(), top);
+            } else if (ast instanceof Ast.Stmt.Declaration) {
+                top = push(((Ast.Stmt.Declaration) ast).getValue().orElse(null), top);
+            } else if (ast instanceof Ast.Stmt.Assignment) {
+                top = push(((Ast.Stmt.Assignment) ast).getReceiver(), top);
+                top = push(((Ast.Stmt.Assignment) ast).getValue(), top);
+            } else if (ast instanceof Ast.Stmt.If) {
+                top = push(((Ast.Stmt.If) ast).getCondition(), top);
+                top = push(((Ast.Stmt.If) ast).getThenStatements(), top);
+                top = push(((Ast.Stmt.If) ast).getElseStatements(), top);
+            } else if (ast instanceof Ast.Stmt.For) {
+                top = push(((Ast.Stmt.For) ast).getValue(), top);
+                top = push(((Ast.Stmt.For) ast).getStatements(), top);
+            } else if (ast instanceof Ast.Stmt.While) {
+                top = push(((Ast.Stmt.While) ast).getCondition(), top);
+                top = push(((Ast.Stmt.While) ast).getStatements(), top);
+            } else if (ast instanceof Ast.Stmt.Return) {
+                top = push(((Ast.Stmt.Return) ast).getValue(), top);
+            } else if (ast instanceof Ast.Expr.Group) {
+                top = push(((Ast.Expr.Group) ast).getExpression(), top);
+            } else if (ast instanceof Ast.Expr.Binary) {
+                top = push(((Ast.Expr.Binary) ast).getLeft(), top);
+                top = push(((Ast.Expr.Binary) ast).getRight(), top);
+            } else if (ast instanceof Ast.Expr.Access) {
+                top = push(((Ast.Expr.Access) ast).getReceiver().orElse(null), top);
+            } else if (ast instanceof Ast.Expr.Function) {
+                top = push(((Ast.Expr.Function) ast).getReceiver().orElse(null), top);
+                top = push(((Ast.Expr.Function) ast).getArguments(), top);
+            }
+
+            // reverse the children, which were pushed in order
+            for (int i = start, j = top - 1; i < j; i++, j--) {
+                Ast swap = stack[i];
+                stack[i] = stack[j];
+                stack[j] = swap;
+            }
+            return top;
+        }
+
+        private int push(List<? extends Ast> list, int top) {
+            for (Ast ast : list) {
+                top = push(ast, top);
+            }
+            return top;
+        }
+
+        private int push(Ast ast, int top) {
+            if (ast == null) {
+                return top;
+            }
+            if (top == stack.length) {
+                stack = Arrays.copyOf(stack, top * 2);
+                entered = Arrays.copyOf(entered, top * 2);
+            }
+            stack[top] = ast;
+            entered[top] = false;
+            return top + 1;
+        }
+
+        /**
+         * Returns the number of children of a node, which have been added
+         * just before it.
+         */
+        private static int added(Ast ast) {
+            if (ast instanceof Ast.Method) {
+                return ((Ast.Method) ast).getStatements().size();
+            } else if (ast instanceof Ast.Field) {
+                return ((Ast.Field) ast).getValue().isPresent() ? 1 : 0;
+            } else if (ast instanceof Ast.Stmt.Declaration) {
+                return ((Ast.Stmt.Declaration) ast).getValue().isPresent() ? 1 : 0;
+            } else if (ast instanceof Ast.Stmt.If) {
+                return 1 + ((Ast.Stmt.If) ast).getThenStatements().size() + ((Ast.Stmt.If) ast).getElseStatements().size();
+            } else if (ast instanceof Ast.Stmt.For) {
+                return 1 + ((Ast.Stmt.For) ast).getStatements().size();
+            } else if (ast instanceof Ast.Stmt.While) {
+                return 1 + ((Ast.Stmt.While) ast).getStatements().size();
+            } else if (ast instanceof Ast.Stmt.Assignment || ast instanceof Ast.Expr.Binary) {
+                return 2;
+            } else if (ast instanceof Ast.Stmt.Expression || ast instanceof Ast.Stmt.Return || ast instanceof Ast.Expr.Group) {
+                return 1;
+            } else if (ast instanceof Ast.Expr.Access) {
+                return ((Ast.Expr.Access) ast).getReceiver().isPresent() ? 1 : 0;
+            } else if (ast instanceof Ast.Expr.Function) {
+                return (((Ast.Expr.Function) ast).getReceiver().isPresent() ? 1 : 0) + ((Ast.Expr.Function) ast).getArguments().size();
+            }
+            return 0;
+        }
+
+        /**
+         * Writes the record of a node whose children are the nodes from
+         * {@code children[at]} on.
+         */
+        private int emit(Ast ast, int at, long span) {
+            if (ast instanceof Ast.Field) {
+                Ast.Field field = (Ast.Field) ast;
+                int node = node(Kind.FIELD, span);
+                put(constant(field.getName()));
+                put(constant(field.getTypeName()));
+                put(field.getValue().isPresent() ? children[at] : -1);
+                return node;
+            } else if (ast instanceof Ast.Method) {
+                Ast.Method method = (Ast.Method) ast;
+                int node = node(Kind.METHOD, span);
+                put(constant(method.getName()));
+                put(method.getReturnTypeName().isPresent() ? constant(method.getReturnTypeName().get()) : -1);
+                putConstants(method.getParameters());
+                putConstants(method.getParameterTypeNames());
+                putChildren(at, method.getStatements().size());
+                return node;
+            } else if (ast instanceof Ast.Stmt.Expression) {
+                int node = node(Kind.EXPRESSION, span);
+                put(children[at]);
+                return node;
+            } else if (ast instanceof Ast.Stmt.Declaration) {
+                Ast.Stmt.Declaration declaration = (Ast.Stmt.Declaration) ast;
+                int node = node(Kind.DECLARATION, span);
+                put(constant(declaration.getName()));
+                put(declaration.getTypeName().isPresent() ? constant(declaration.getTypeName().get()) : -1);
+                put(declaration.getValue().isPresent() ? children[at] : -1);
+                return node;
+            } else if (ast instanceof Ast.Stmt.Assignment) {
+                int node = node(Kind.ASSIGNMENT, span);
+                put(children[at]);
+                put(children[at + 1]);
+                return node;
+            } else if (ast instanceof Ast.Stmt.If) {
+                Ast.Stmt.If statement = (Ast.Stmt.If) ast;
+                int node = node(Kind.IF, span);
+                put(children[at]);
+                putChildren(at + 1, statement.getThenStatements().size());
+                putChildren(at + 1 + statement.getThenStatements().size(), statement.getElseStatements().size());
+                return node;
+            } else if (ast instanceof Ast.Stmt.For) {
+                Ast.Stmt.For statement = (Ast.Stmt.For) ast;
+                int node = node(Kind.FOR, span);
+                put(constant(statement.getName()));
+                put(children[at]);
+                putChildren(at + 1, statement.getStatements().size());
+                return node;
+            } else if (ast instanceof Ast.Stmt.While) {
+                int node = node(Kind.WHILE, span);
+                put(children[at]);
+                putChildren(at + 1, ((Ast.Stmt.While) ast).getStatements().size());
+                return node;
+            } else if (ast instanceof Ast.Stmt.Return) {
+                int node = node(Kind.RETURN, span);
+                put(children[at]);
+                return node;
+            } else if (ast instanceof Ast.Stmt.Error) {
+                int node = node(Kind.ERROR, span);
+                put(constant(((Ast.Stmt.Error) ast).getMessage()));
+                put(((Ast.Stmt.Error) ast).getIndex());
+                return node;
+            } else if (ast instanceof Ast.Expr.Literal) {
+                int node = node(Kind.LITERAL, span);
+                put(constant(((Ast.Expr.Literal) ast).getLiteral()));
+                return node;
+            } else if (ast instanceof Ast.Expr.Group) {
+                int node = node(Kind.GROUP, span);
+                put(children[at]);
+                return node;
+            } else if (ast instanceof Ast.Expr.Binary) {
+                int node = node(Kind.BINARY, span);
+                put(constant(((Ast.Expr.Binary) ast).getOperator()));
+                put(children[at]);
+                put(children[at + 1]);
+                return node;
+            } else if (ast instanceof Ast.Expr.Access) {
+                Ast.Expr.Access access = (Ast.Expr.Access) ast;
+                int node = node(Kind.ACCESS, span);
+                put(access.getReceiver().isPresent() ? children[at] : -1);
+                put(constant(access.getName()));
+                return node;
+            } else if (ast instanceof Ast.Expr.Function) {
+                Ast.Expr.Function function = (Ast.Expr.Function) ast;
+                int receiver = function.getReceiver().isPresent() ? 1 : 0;
+                int node = node(Kind.FUNCTION, span);
+                put(receiver == 1 ? children[at] : -1);
+                put(constant(function.getName()));
+                putChildren(at + receiver, function.getArguments().size());
+                return node;
+            }
+            throw new AssertionError("Unimplemented AST type: " + ast.getClass().getName() + ".");
+        }
+
+        private int node(Kind kind, long span) {
+            if (size == kinds.length) {
+                kinds = Arrays.copyOf(kinds, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                spans = Arrays.copyOf(spans, size * 2);
+            }
+            kinds[size] = (byte) kind.ordinal();
+            offsets[size] = length;
+            spans[size] = span;
+            return size++;
+        }
+
+        private void put(int value) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, length * 2);
+            }
+            data[length++] = value;
+        }
+
+        private void putChildren(int at, int count) {
+            put(count);
+            for (int i = 0; i < count; i++) {
+                put(children[at + i]);
+            }
+        }
+
+        private void putConstants(List<String> values) {
+            put(values.size());
+            for (String value : values) {
+                put(constant(value));
+            }
+        }
+
+        private int constant(Object value) {
+            Integer index = constantIndices.get(value);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                constantIndices.put(value, index);
+            }
+            return index;
+        }
+
+    }
+
+}
@@ -0,0 +1,163 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Tests for {@link FlatAst}, whose nodes must materialize to trees equal to
+ * the ones they were encoded from and read the same through its accessors.
+ */
+final class FlatAstTests {
+
+    @Test
+    void testRoundTrip() {
+        Ast.Source source = source();
+        FlatAst flat = FlatAst.of(source);
+        Assertions.assertEquals(source, flat.toAst());
+    }
+
+    @Test
+    void testRoundTripParsed() {
+        String text = "LET a: Integer = 1 + 2 * 3;\nLET b;\n"
+                + "DEF f(): Integer DO LET x = (a - 1) / 2.5; WHILE x < 1 DO print(\"s\", 'c', x.y); END RETURN a; END\n"
+                + "DEF g() DO LET y: Decimal; h(TRUE AND FALSE OR NIL); END\n";
+        Ast.Source expected = new Parser(new Lexer(text).lex()).parseSource();
+        Assertions.assertEquals(expected, FlatAst.of(expected).toAst());
+        Assertions.assertEquals(expected, new Parser(new Lexer(text).lex()).parseSourceFlat().toAst());
+    }
+
+    @Test
+    void testPostOrder() {
+        FlatAst flat = FlatAst.of(source());
+        int root = flat.getRoot();
+        Assertions.assertEquals(FlatAst.Kind.SOURCE, flat.getKind(root));
+        Assertions.assertEquals(flat.size() - 1, root);
+        for (int i = 0; i < flat.getMethodCount(root); i++) {
+            int method = flat.getMethod(root, i);
+            Assertions.assertTrue(method < root);
+            for (int j = 0; j < flat.getStatementCount(method); j++) {
+                Assertions.assertTrue(flat.getStatement(method, j) < method);
+            }
+        }
+    }
+
+    @Test
+    void testAccessors() {
+        FlatAst flat = FlatAst.of(source());
+        int root = flat.getRoot();
+        Assertions.assertEquals(2, flat.getFieldCount(root));
+        int field = flat.getField(root, 0);
+        Assertions.assertEquals("a", flat.getName(field));
+        Assertions.assertEquals("Integer", flat.getTypeName(field));
+        int binary = flat.getValue(field);
+        Assertions.assertEquals(FlatAst.Kind.BINARY, flat.getKind(binary));
+        Assertions.assertEquals("+", flat.getOperator(binary));
+        Assertions.assertEquals(BigInteger.ONE, flat.getLiteral(flat.getLeft(binary)));
+        Assertions.assertEquals(-1, flat.getValue(flat.getField(root, 1)));
+
+        int method = flat.getMethod(root, 0);
+        Assertions.assertEquals("f", flat.getName(method));
+        Assertions.assertEquals(Arrays.asList("p", "q"), Arrays.asList(flat.getParameter(method, 0), flat.getParameter(method, 1)));
+        Assertions.assertEquals("Decimal", flat.getParameterTypeName(method, 1));
+        Assertions.assertEquals("Integer", flat.getReturnTypeName(method));
+        Assertions.assertNull(flat.getReturnTypeName(flat.getMethod(root, 1)));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> flat.getOperator(field));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> flat.getName(binary));
+        Assertions.assertEquals(-1, flat.getStart(root));
+    }
+
+    @Test
+    void testSubtree() {
+        Ast.Source source = source();
+        FlatAst flat = FlatAst.of(source);
+        int root = flat.getRoot();
+        for (int i = 0; i < flat.getMethodCount(root); i++) {
+            Assertions.assertEquals(source.getMethods().get(i), flat.toAst(flat.getMethod(root, i)));
+        }
+        Assertions.assertEquals(source.getFields().get(0), flat.toAst(flat.getField(root, 0)));
+    }
+
+    @Test
+    void testSpans() {
+        String text = "LET a = 1;\nDEF f() DO LET x = a + 2; RETURN x; END";
+        List<Token> tokens = new Lexer(text).lex();
+        FlatAst flat = new Parser(tokens).parseSourceFlat();
+        int root = flat.getRoot();
+        Assertions.assertEquals(0, flat.getStart(root));
+        Assertions.assertEquals(tokens.size(), flat.getEnd(root));
+        int field = flat.getField(root, 0);
+        Assertions.assertEquals(0, flat.getStart(field));
+        Assertions.assertEquals(5, flat.getEnd(field));
+        int method = flat.getMethod(root, 0);
+        Assertions.assertEquals(5, flat.getStart(method));
+        Assertions.assertEquals(tokens.size(), flat.getEnd(method));
+        int declaration = flat.getStatement(method, 0);
+        Assertions.assertEquals("LET", tokens.get(flat.getStart(declaration)).getLiteral());
+        Assertions.assertEquals(";", tokens.get(flat.getEnd(declaration) - 1).getLiteral());
+    }
+
+    @Test
+    void testTypeSlots() {
+        FlatAst flat = FlatAst.of(source());
+        Assertions.assertEquals(-1, flat.getTypeSlot(0));
+        flat.setTypeSlot(0, 7);
+        Assertions.assertEquals(7, flat.getTypeSlot(0));
+        Assertions.assertEquals(-1, flat.getTypeSlot(1));
+    }
+
+    @Test
+    void testWriteRead() {
+        Ast.Source source = source();
+        byte[] bytes = FlatAst.of(source).write();
+        Assertions.assertEquals(source, FlatAst.read(ByteBuffer.wrap(bytes)).toAst());
+    }
+
+    @Test
+    void testDeepRoundTrip() {
+        Ast.Expr expr = new Ast.Expr.Literal(BigInteger.ONE);
+        for (int i = 0; i < 100000; i++) {
+            expr = new Ast.Expr.Binary("+", expr, new Ast.Expr.Access(Optional.empty(), "x"));
+        }
+        Ast.Source source = new Ast.Source(Arrays.asList(new Ast.Field("a", Optional.of(expr))), Collections.emptyList());
+        Ast.Source decoded = FlatAst.read(ByteBuffer.wrap(FlatAst.of(source).write())).toAst();
+        Assertions.assertEquals(FlatAst.of(source).size(), FlatAst.of(decoded).size());
+    }
+
+    /**
+     * Returns a source with a node of every kind and a literal of every type.
+     */
+    private static Ast.Source source() {
+        Ast.Expr.Access x = new Ast.Expr.Access(Optional.empty(), "x");
+        List<Ast.Field> fields = Arrays.asList(
+                new Ast.Field("a", "Integer", Optional.of(new Ast.Expr.Binary("+",
+                        new Ast.Expr.Literal(BigInteger.ONE), new Ast.Expr.Literal(new BigDecimal("-2.50"))))),
+                new Ast.Field("b", Optional.empty())
+        );
+        List<Ast.Stmt> statements = Arrays.asList(
+                new Ast.Stmt.Declaration("x", Optional.of("Integer"), Optional.empty()),
+                new Ast.Stmt.Assignment(new Ast.Expr.Access(Optional.of(x), "y"), new Ast.Expr.Literal('c')),
+                new Ast.Stmt.If(new Ast.Expr.Literal(Boolean.TRUE),
+                        Arrays.asList(new Ast.Stmt.Expression(new Ast.Expr.Function(Optional.of(x), "m",
+                                Arrays.asList(new Ast.Expr.Literal("s\ud800"), new Ast.Expr.Literal(null))))),
+                        Arrays.asList(new Ast.Stmt.Return(new Ast.Expr.Group(x)))),
+                new Ast.Stmt.For("i", new Ast.Expr.Function(Optional.empty(), "list", Collections.emptyList()),
+                        Arrays.asList(new Ast.Stmt.While(new Ast.Expr.Literal(Boolean.FALSE), Collections.emptyList()))),
+                new Ast.Stmt.Error("Expected expression.", 42)
+        );
+        List<Ast.Method> methods = Arrays.asList(
+                new Ast.Method("f", Arrays.asList("p", "q"), Arrays.asList("Integer", "Decimal"), Optional.of("Integer"), statements),
+                new Ast.Method("g", Collections.emptyList(), Collections.emptyList(), Optional.empty(), Collections.emptyList())
+        );
+        return new Ast.Source(fields, methods);
+    }
+
+}
@@ -2,16 +2,69 @@ package plc.project;
 
 import java.io.PrintWriter;
 import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 
 public final class Generator implements Ast.Visitor<Void> {
 
+    // marks where generate leaves an expression in the result
+    private static final Object EXIT = new Object();
+
     private final PrintWriter writer;
     private int indent = 0;
+    private AnalysisResult result;
+    private boolean iterative = false;
 
     public Generator(PrintWriter writer) {
         this.writer = writer;
     }
 
+    /**
+     * Sets the result of analyzing the tree with {@link
+     * Analyzer#setResult(AnalysisResult)}, from which types, variables and
+     * functions are then read instead of from the nodes.
+     */
+    public void setResult(AnalysisResult result) {
+        this.result = result;
+    }
+
+    /**
+     * Sets whether expressions are generated with an explicit stack on the
+     * heap rather than by recursion, as with {@link
+     * Interpreter#setIterative(boolean)}, so that expressions nested to any
+     * depth can be generated without overflowing the thread's stack. The
+     * output and errors are the same either way. Statements are still
+     * generated recursively.
+     */
+    public void setIterative(boolean iterative) {
+        this.iterative = iterative;
+    }
+
+    /**
+     * Dispatches to the method for the node, first entering it in the
+     * result, if any, so that a node occurring more than once in the tree
+     * refers to the occurrence being visited.
+     */
+    @Override
+    public Void visit(Ast ast) {
+        if (iterative && ast instanceof Ast.Expr) {
+            generate((Ast.Expr) ast);
+            return null;
+        }
+        if (result == null) {
+            return Ast.Visitor.super.visit(ast);
+        }
+        result.enter(ast);
+        try {
+            return Ast.Visitor.super.visit(ast);
+        } finally {
+            result.exit();
+        }
+    }
+
     private void print(Object... objects) {
         for (Object object : objects) {
             if (object instanceof Ast) {
@@ -22,6 +75,30 @@ public final class Generator implements Ast.Visitor<Void> {
         }
     }
 
+    private Environment.Type getType(Ast.Expr ast) {
+        return result != null ? result.getType(ast) : ast.getType();
+    }
+
+    private Environment.Variable getVariable(Ast ast) {
+        if (result != null) {
+            return result.getVariable(ast);
+        } else if (ast instanceof Ast.Field) {
+            return ((Ast.Field) ast).getVariable();
+        } else if (ast instanceof Ast.Stmt.Declaration) {
+            return ((Ast.Stmt.Declaration) ast).getVariable();
+        }
+        return ((Ast.Expr.Access) ast).getVariable();
+    }
+
+    private Environment.Function getFunction(Ast ast) {
+        if (result != null) {
+            return result.getFunction(ast);
+        } else if (ast instanceof Ast.Method) {
+            return ((Ast.Method) ast).getFunction();
+        }
+        return ((Ast.Expr.Function) ast).getFunction();
+    }
+
     private void newline(int indent) {
         writer.println();
         for (int i = 0; i < indent; i++) {
@@ -76,12 +153,12 @@ public final class Generator implements Ast.Visitor<Void> {
     @Override
     public Void visit(Ast.Field ast) {
 
-        print(ast.getVariable().getType().getJvmName(), " ",
-                ast.getVariable().getJvmName());
+        print(getVariable(ast).getType().getJvmName(), " ",
+                getVariable(ast).getJvmName());
 
         if (ast.getValue().isPresent())
         {
-            print(" = ", ast.getVariable().getValue());
+            print(" = ", getVariable(ast).getValue());
         }
         print(";");
 
@@ -90,7 +167,7 @@ public final class Generator implements Ast.Visitor<Void> {
 
     @Override
     public Void visit(Ast.Method ast) {
-        print(ast.getFunction().getReturnType().getJvmName(), " ", ast.getName(), "(");
+        print(getFunction(ast).getReturnType().getJvmName(), " ", ast.getName(), "(");
 
         if (!ast.getParameters().isEmpty())
         {
@@ -134,8 +211,8 @@ public final class Generator implements Ast.Visitor<Void> {
     @Override
     public Void visit(Ast.Stmt.Declaration ast) {
         // write: TYPE variable_name
-        print(ast.getVariable().getType().getJvmName(), " ",
-                ast.getVariable().getJvmName());
+        print(getVariable(ast).getType().getJvmName(), " ",
+                getVariable(ast).getJvmName());
 
         // is there an assigned value?
         // if so, write: = and the value
@@ -260,11 +337,11 @@ public final class Generator implements Ast.Visitor<Void> {
 
     @Override
     public Void visit(Ast.Expr.Literal ast) {
-        if (ast.getType().equals(Environment.Type.STRING) || ast.getType().equals(Environment.Type.CHARACTER))
+        if (getType(ast).equals(Environment.Type.STRING) || getType(ast).equals(Environment.Type.CHARACTER))
         {
             print("\"", ast.getLiteral(), "\"");
         }
-        else if (ast.getType().equals(Environment.Type.NIL))
+        else if (getType(ast).equals(Environment.Type.NIL))
         {
             print("null");
         }
@@ -306,7 +383,7 @@ public final class Generator implements Ast.Visitor<Void> {
             print(ast.getReceiver().get(), ".");
         }
 
-        print(ast.getVariable().getJvmName());
+        print(getVariable(ast).getJvmName());
 
         return null;
     }
@@ -318,7 +395,7 @@ public final class Generator implements Ast.Visitor<Void> {
             print(ast.getReceiver().get(), ".");
         }
 
-        print(ast.getFunction().getJvmName(), "(");
+        print(getFunction(ast).getJvmName(), "(");
 
         if (!ast.getArguments().isEmpty())
         {
@@ -334,4 +411,98 @@ public final class Generator implements Ast.Visitor<Void> {
         return null;
     }
 
+    /**
+     * Generates an expression as the visit methods would, but keeps what is
+     * left to print on an explicit stack: text, expressions to expand, the
+     * names of accesses and calls, which are looked up only when printed,
+     * and markers for leaving an expression in the result.
+     */
+    private void generate(Ast.Expr ast) {
+        Deque<Object> stack = new ArrayDeque<>();
+        List<Object> items = new ArrayList<>();
+        int depth = 0;
+        stack.push(ast);
+        try {
+            while (!stack.isEmpty())
+            {
+                Object item = stack.pop();
+                if (item == EXIT) {
+                    result.exit();
+                    depth--;
+                    continue;
+                } else if (item instanceof Name) {
+                    Ast named = ((Name) item).ast;
+                    print(named instanceof Ast.Expr.Access ? getVariable(named).getJvmName() : getFunction(named).getJvmName());
+                    continue;
+                } else if (!(item instanceof Ast.Expr)) {
+                    print(item);
+                    continue;
+                }
+
+                Ast.Expr expr = (Ast.Expr) item;
+                if (result != null) {
+                    result.enter(expr);
+                    depth++;
+                    stack.push(EXIT);
+                }
+                items.clear();
+                if (expr instanceof Ast.Expr.Literal) {
+                    visit((Ast.Expr.Literal) expr);
+                } else if (expr instanceof Ast.Expr.Group) {
+                    Collections.addAll(items, "(", ((Ast.Expr.Group) expr).getExpression(), ")");
+                } else if (expr instanceof Ast.Expr.Binary) {
+                    Ast.Expr.Binary binary = (Ast.Expr.Binary) expr;
+                    if (binary.getOperator().equals("AND")) {
+                        Collections.addAll(items, binary.getLeft(), " && ", binary.getRight());
+                    } else if (binary.getOperator().equals("OR")) {
+                        Collections.addAll(items, binary.getLeft(), " || ", binary.getRight());
+                    } else {
+                        Collections.addAll(items, binary.getLeft(), " ", binary.getOperator(), " ", binary.getRight());
+                    }
+                } else if (expr instanceof Ast.Expr.Access) {
+                    Ast.Expr.Access access = (Ast.Expr.Access) expr;
+                    if (access.getReceiver().isPresent()) {
+                        Collections.addAll(items, access.getReceiver().get(), ".");
+                    }
+                    items.add(new Name(access));
+                } else {
+                    Ast.Expr.Function function = (Ast.Expr.Function) expr;
+                    if (function.getReceiver().isPresent()) {
+                        Collections.addAll(items, function.getReceiver().get(), ".");
+                    }
+                    Collections.addAll(items, new Name(function), "(");
+                    for (int i = 0; i < function.getArguments().size(); i++) {
+                        if (i != 0) {
+                            items.add(", ");
+                        }
+                        items.add(function.getArguments().get(i));
+                    }
+                    items.add(")");
+                }
+                // pushed in reverse, so that they are printed in order
+                for (int i = items.size() - 1; i >= 0; i--) {
+                    stack.push(items.get(i));
+                }
+            }
+        } finally {
+            for (; depth > 0; depth--) {
+                result.exit();
+            }
+        }
+    }
+
+    /**
+     * The name of an access or call, which is printed by {@link
+     * #generate(Ast.Expr)} once its receiver has been.
+     */
+    private static final class Name {
+
+        private final Ast ast;
+
+        private Name(Ast ast) {
+            this.ast = ast;
+        }
+
+    }
+
 }
@@ -3,7 +3,9 @@ package plc.project;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.EventListener;
 import java.util.List;
 import java.util.Optional;
@@ -12,6 +14,7 @@ import java.util.stream.Collectors;
 public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
 
     private Scope scope = new Scope(null);
+    private boolean iterative = false;
 
     public Interpreter(Scope parent) {
         scope = new Scope(parent);
@@ -25,6 +28,25 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
         return scope;
     }
 
+    /**
+     * Sets whether expressions are evaluated with an explicit stack on the
+     * heap rather than by recursion, so that expressions nested to any depth
+     * can be evaluated without overflowing the thread's stack. Results, side
+     * effects and errors are the same either way, except that {@code OR}
+     * does not print the debugging line the visit method does. Statements,
+     * and the bodies of called methods, are still executed recursively.
+     */
+    public void setIterative(boolean iterative) {
+        this.iterative = iterative;
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast ast) {
+        if (iterative && ast instanceof Ast.Expr)
+            return evaluate((Ast.Expr) ast);
+        return Ast.Visitor.super.visit(ast);
+    }
+
     @Override
     public Environment.PlcObject visit(Ast.Source ast)
     {
@@ -466,6 +488,57 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
             return scope.lookupFunction(ast.getName(), ast.getArguments().size()).invoke(temp);
     }
 
+    /**
+     * Evaluates an expression as the visit methods would, but keeps the
+     * expressions being evaluated on an explicit stack of {@link Evaluation}s.
+     *
+     * The visit methods evaluate some operands more than once, such as the
+     * left operand of {@code +} once per type it is checked against. These
+     * evaluations always follow each other directly, so if the first one had
+     * no side effects the next one gives the same value, and it is reused
+     * rather than evaluated again. This keeps long chains of operators linear
+     * rather than exponential in their length.
+     */
+    private Environment.PlcObject evaluate(Ast.Expr ast) {
+        Deque<Evaluation> stack = new ArrayDeque<>();
+        Evaluation evaluation = new Evaluation(ast);
+        Environment.PlcObject value = null;
+
+        while (true)
+        {
+            Ast.Expr operand = evaluation.resume(value);
+            if (operand == null) // the evaluation is complete
+            {
+                Evaluation parent = stack.poll();
+                if (parent == null)
+                    return evaluation.result;
+                value = evaluation.result;
+                parent.receive(evaluation.ast, value, evaluation.effects);
+                evaluation = parent;
+            }
+            else if (operand == evaluation.operand && !evaluation.operandEffects)
+            {
+                value = evaluation.value;
+            }
+            else if (operand instanceof Ast.Expr.Literal)
+            {
+                value = visit((Ast.Expr.Literal) operand);
+                evaluation.receive(operand, value, false);
+            }
+            else if (operand instanceof Ast.Expr.Access && !((Ast.Expr.Access) operand).getReceiver().isPresent())
+            {
+                value = visit((Ast.Expr.Access) operand);
+                evaluation.receive(operand, value, false);
+            }
+            else
+            {
+                stack.push(evaluation);
+                evaluation = new Evaluation(operand);
+                value = null;
+            }
+        }
+    }
+
     /**
      * Helper function to ensure an object is of the appropriate type.
      */
@@ -477,6 +550,241 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
         }
     }
 
+    /**
+     * The state of an expression being evaluated by {@link
+     * #evaluate(Ast.Expr)}. Each call to {@link #resume} continues where the
+     * corresponding visit method would be after evaluating an operand, and
+     * either returns the next operand to evaluate or sets the result and
+     * returns {@code null}.
+     */
+    private final class Evaluation {
+
+        private final Ast.Expr ast;
+        private int step = 0;
+        private Environment.PlcObject result;
+        private boolean effects = false; // whether a method was called
+
+        private Ast.Expr operand; // the last operand evaluated, and its value
+        private Environment.PlcObject value;
+        private boolean operandEffects;
+
+        private Environment.PlcObject left; // the first value of a re-evaluated operand
+        private Object checked; // the comparable left operand, or the cast left value
+        private List<Environment.PlcObject> arguments;
+
+        private Evaluation(Ast.Expr ast) {
+            this.ast = ast;
+        }
+
+        private void receive(Ast.Expr operand, Environment.PlcObject value, boolean effects) {
+            this.operand = operand;
+            this.value = value;
+            this.operandEffects = effects;
+            this.effects |= effects;
+        }
+
+        private Ast.Expr resume(Environment.PlcObject value) {
+            if (ast instanceof Ast.Expr.Binary)
+                return resumeBinary((Ast.Expr.Binary) ast, value);
+            else if (ast instanceof Ast.Expr.Group)
+            {
+                if (step++ == 0)
+                    return ((Ast.Expr.Group) ast).getExpression();
+                return complete(Environment.create(value.getValue()));
+            }
+            else if (ast instanceof Ast.Expr.Access)
+            {
+                Ast.Expr.Access access = (Ast.Expr.Access) ast;
+                if (step++ == 0 && access.getReceiver().isPresent())
+                    return access.getReceiver().get();
+                return complete(visitAccess(access, value));
+            }
+            else if (ast instanceof Ast.Expr.Function)
+                return resumeFunction((Ast.Expr.Function) ast, value);
+            else if (ast instanceof Ast.Expr.Literal)
+                return complete(visit((Ast.Expr.Literal) ast));
+            throw new AssertionError("Unimplemented AST type: " + ast.getClass().getName() + ".");
+        }
+
+        private Environment.PlcObject visitAccess(Ast.Expr.Access ast, Environment.PlcObject receiver) {
+            if (ast.getReceiver().isPresent())
+                return receiver.getField(ast.getName()).getValue();
+            return scope.lookupVariable(ast.getName()).getValue();
+        }
+
+        private Ast.Expr resumeFunction(Ast.Expr.Function ast, Environment.PlcObject value) {
+            // the arguments are evaluated in order, then the receiver
+            if (step == 0)
+                arguments = new ArrayList<>();
+            else if (step <= ast.getArguments().size())
+                arguments.add(value);
+            if (step < ast.getArguments().size())
+                return ast.getArguments().get(step++);
+            if (step++ == ast.getArguments().size() && ast.getReceiver().isPresent())
+                return ast.getReceiver().get();
+
+            effects = true;
+            if (ast.getReceiver().isPresent())
+                return complete(value.callMethod(ast.getName(), arguments));
+            return complete(scope.lookupFunction(ast.getName(), ast.getArguments().size()).invoke(arguments));
+        }
+
+        private Ast.Expr resumeBinary(Ast.Expr.Binary ast, Environment.PlcObject value) {
+            switch (ast.getOperator()) {
+                case "AND":
+                case "OR":
+                    return resumeLogical(ast, value);
+                case "<":
+                case "<=":
+                case ">":
+                case ">=":
+                    return resumeComparison(ast, value);
+                case "==":
+                case "!=":
+                    return complete(Environment.create(ast.getLeft().equals(ast.getRight())));
+                case "+":
+                    return resumeArithmetic(ast, value, 3);
+                case "-":
+                case "*":
+                case "/":
+                    return resumeArithmetic(ast, value, 2);
+                default:
+                    return complete(Environment.NIL);
+            }
+        }
+
+        private Ast.Expr resumeLogical(Ast.Expr.Binary ast, Environment.PlcObject value) {
+            switch (step++) {
+                case 0:
+                    return ast.getLeft();
+                case 1:
+                    left = value;
+                    return ast.getLeft();
+                case 2:
+                    if (!requireType(Boolean.class, value))
+                        return complete(Environment.NIL);
+                    if (ast.getOperator().equals("AND"))
+                        return ast.getRight();
+
+                    if (left.getValue() == Boolean.TRUE)
+                        return complete(Environment.create(true));
+                    return ast.getRight();
+                default:
+                    if (ast.getOperator().equals("AND"))
+                        return complete(Environment.create(left.getValue() == Boolean.TRUE && value.getValue() == Boolean.TRUE));
+                    return complete(Environment.create(value.getValue() == Boolean.TRUE));
+            }
+        }
+
+        private Ast.Expr resumeComparison(Ast.Expr.Binary ast, Environment.PlcObject value) {
+            switch (step++) {
+                case 0:
+                    return ast.getLeft();
+                case 1:
+                    left = value;
+                    checked = requireType(Comparable.class, left);
+                    return ast.getRight();
+            }
+
+            @SuppressWarnings("unchecked")
+            Comparable<Object> comparable = (Comparable<Object>) checked;
+            int result = comparable.compareTo(requireType(left.getValue().getClass(), value));
+            switch (ast.getOperator()) {
+                case "<":
+                    return complete(Environment.create(result == -1));
+                case "<=":
+                    return complete(Environment.create(result == -1 || result == 0));
+                case ">":
+                    return complete(Environment.create(result == 1));
+                default:
+                    return complete(Environment.create(result == 0 || result == 1));
+            }
+        }
+
+        /**
+         * Follows the visit method in checking the left operand against each
+         * of the first {@code types} of BigInteger, BigDecimal and String in
+         * turn, evaluating it once per check. Once one matches, the left
+         * operand is evaluated again for its value, and the right operand is
+         * checked against the same type and evaluated again for its value.
+         */
+        private Ast.Expr resumeArithmetic(Ast.Expr.Binary ast, Environment.PlcObject value, int types) {
+            int type = step / 5;
+            switch (step++ % 5) {
+                case 0:
+                    return ast.getLeft();
+                case 1:
+                    if (isType(type, value.getValue()))
+                        return ast.getLeft();
+                    if (type + 1 == types)
+                        return complete(Environment.NIL);
+                    step = (type + 1) * 5 + 1; // check the next type
+                    return ast.getLeft();
+                case 2:
+                    checked = cast(type, value.getValue());
+                    return ast.getRight();
+                case 3:
+                    if (isType(type, value.getValue()))
+                        return ast.getRight();
+                    throw new RuntimeException(mismatch(type, ast.getOperator()));
+                default:
+                    return complete(arithmetic(ast.getOperator(), checked, cast(type, value.getValue())));
+            }
+        }
+
+        private Ast.Expr complete(Environment.PlcObject result) {
+            this.result = result;
+            return null;
+        }
+
+    }
+
+    private static boolean isType(int type, Object value) {
+        return type == 0 ? value instanceof BigInteger : type == 1 ? value instanceof BigDecimal : value instanceof String;
+    }
+
+    private static Object cast(int type, Object value) {
+        return type == 0 ? (BigInteger) value : type == 1 ? (BigDecimal) value : (String) value;
+    }
+
+    private static String mismatch(int type, String operator) {
+        String name = type == 0 ? "BigInteger" : type == 1 ? "BigDecimal" : "String";
+        if (operator.equals("+"))
+            return type == 2 ? "String concatenation type mismatch." : name + " addition type mismatch.";
+        else if (operator.equals("/"))
+            return name + " division type mismatch.";
+        return name + " -/* type mismatch.";
+    }
+
+    /**
+     * Applies an arithmetic operator to operands of the same type, as the
+     * visit method does.
+     */
+    private static Environment.PlcObject arithmetic(String operator, Object left, Object right) {
+        if (left instanceof String)
+            return Environment.create(((String) left).concat((String) right));
+
+        if (operator.equals("/") && right.equals(0))
+            throw new RuntimeException("Can't divide by 0.");
+        if (left instanceof BigInteger)
+        {
+            BigInteger l = (BigInteger) left, r = (BigInteger) right;
+            switch (operator) {
+                case "+": return Environment.create(l.add(r));
+                case "-": return Environment.create(l.subtract(r));
+                case "*": return Environment.create(l.multiply(r));
+                default: return Environment.create(l.divide(r));
+            }
+        }
+        BigDecimal l = (BigDecimal) left, r = (BigDecimal) right;
+        switch (operator) {
+            case "+": return Environment.create(l.add(r));
+            case "-": return Environment.create(l.subtract(r));
+            case "*": return Environment.create(l.multiply(r));
+            default: return Environment.create(l.divide(r, 1, RoundingMode.HALF_EVEN));
+        }
+    }
+
     /**
      * Exception class for returning values.
      */
@@ -0,0 +1,130 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Tests for the iterative modes of the {@link Analyzer}, {@link Generator}
+ * and {@link Interpreter}, which must match their visit methods and handle
+ * expressions nested deeper than the thread's stack allows.
+ */
+final class IterativeTests {
+
+    private static final int DEPTH = 200000;
+
+    @Test
+    void testAnalyzeMatchesRecursive() {
+        String source = "b AND x + x * 2 > 3 OR b";
+        Ast.Expr recursive = new Parser(new Lexer(source).lex()).parseExpression();
+        Ast.Expr iterative = new Parser(new Lexer(source).lex()).parseExpression();
+        quietly(() -> analyzer(false).visit(recursive));
+        quietly(() -> analyzer(true).visit(iterative));
+        Assertions.assertEquals(recursive, iterative);
+    }
+
+    @Test
+    void testAnalyzeErrorMatchesRecursive() {
+        String source = "x + 1 - (y * 2.0) / h()";
+        Ast.Expr expr = new Parser(new Lexer(source).lex()).parseExpression();
+        RuntimeException recursive = Assertions.assertThrows(RuntimeException.class,
+                () -> quietly(() -> analyzer(false).visit(expr)));
+        RuntimeException iterative = Assertions.assertThrows(RuntimeException.class,
+                () -> quietly(() -> analyzer(true).visit(expr)));
+        Assertions.assertEquals(recursive.getMessage(), iterative.getMessage());
+    }
+
+    @Test
+    void testGenerateMatchesRecursive() {
+        Ast.Expr expr = new Parser(new Lexer("o.m().f AND b OR o.f OR x + 1 < x").lex()).parseExpression();
+        Scope members = new Scope(null);
+        Environment.Type object = new Environment.Type("Object", "Object", members);
+        members.defineVariable("f", "field", Environment.Type.BOOLEAN, Environment.NIL);
+        members.defineFunction("m", "method", Arrays.asList(object), object, args -> Environment.NIL);
+
+        AnalysisResult result = new AnalysisResult(expr);
+        Analyzer analyzer = analyzer(true);
+        analyzer.setResult(result);
+        analyzer.getScope().defineVariable("o", "o", object, Environment.NIL);
+        quietly(() -> analyzer.visit(expr));
+        Assertions.assertEquals(generate(expr, result, false), generate(expr, result, true));
+        Assertions.assertEquals("o.method().field && b || o.field || x + 1 < x", generate(expr, result, true));
+    }
+
+    @Test
+    void testDeepExpression() {
+        Ast.Expr expr = new Ast.Expr.Literal(BigInteger.ONE);
+        for (int i = 0; i < DEPTH; i++) {
+            expr = new Ast.Expr.Binary("+", expr, new Ast.Expr.Literal(BigInteger.ONE));
+        }
+        Ast.Expr deep = expr;
+        AnalysisResult result = new AnalysisResult(deep);
+        Analyzer analyzer = analyzer(true);
+        analyzer.setResult(result);
+        quietly(() -> analyzer.visit(deep));
+        Assertions.assertEquals(Environment.Type.INTEGER, result.getType(deep));
+
+        String code = generate(deep, result, true);
+        Assertions.assertEquals(4 * DEPTH + 1, code.length());
+        Assertions.assertTrue(code.startsWith("1 + 1 + 1"));
+    }
+
+    @Test
+    void testOrNotPrinted() {
+        Ast.Expr expr = new Parser(new Lexer("TRUE OR FALSE").lex()).parseExpression();
+        Interpreter interpreter = new Interpreter(null);
+        interpreter.setIterative(true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(bytes));
+        try {
+            Assertions.assertEquals(Boolean.TRUE, interpreter.visit(expr).getValue());
+        } finally {
+            System.setOut(out);
+        }
+        Assertions.assertEquals("", bytes.toString());
+    }
+
+    private static Analyzer analyzer(boolean iterative) {
+        Analyzer analyzer = new Analyzer(null);
+        analyzer.setIterative(iterative);
+        Scope scope = analyzer.getScope();
+        scope.defineVariable("x", "x", Environment.Type.INTEGER, Environment.NIL);
+        scope.defineVariable("y", "y", Environment.Type.DECIMAL, Environment.NIL);
+        scope.defineVariable("b", "b", Environment.Type.BOOLEAN, Environment.NIL);
+        scope.defineVariable("s", "s", Environment.Type.STRING, Environment.NIL);
+        scope.defineFunction("f", "f", Arrays.asList(Environment.Type.INTEGER), Environment.Type.INTEGER, args -> Environment.NIL);
+        scope.defineFunction("h", "h", Arrays.asList(), Environment.Type.STRING, args -> Environment.NIL);
+        return analyzer;
+    }
+
+    private static String generate(Ast.Expr expr, AnalysisResult result, boolean iterative) {
+        StringWriter writer = new StringWriter();
+        Generator generator = new Generator(new PrintWriter(writer));
+        generator.setResult(result);
+        generator.setIterative(iterative);
+        generator.visit(expr);
+        return writer.toString();
+    }
+
+    /**
+     * Runs an analysis without the literals the analyzer prints.
+     */
+    private static void quietly(Runnable runnable) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            runnable.run();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+}
@@ -1,6 +1,16 @@
 package plc.project;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.lang.*;
 
 /**
@@ -10,22 +20,166 @@ import java.lang.*;
  *  - {@link #lexToken()}, which lexes the next token
  *  - {@link CharStream}, which manages the state of the lexer and literals
  *
- * If the lexer fails to parse something (such as an unterminated string) you
- * should throw a {@link ParseException} with an index at the character which is
+ * The lexer is also a {@link TokenSource}, so tokens can be pulled one at a
+ * time with {@link #next()} instead of lexing the whole input up front. When
+ * constructed from a {@link Reader} only a bounded window of characters is
+ * kept in memory. When constructed from a {@link Path} the file is memory
+ * mapped and decoded in place, and token literals are only sliced from the
+ * mapping once they are requested.
+ *
+ * Identifier tokens are tagged with their {@link Token.Keyword}, and all other
+ * identifiers are interned into a {@link SymbolTable} so that later stages
+ * can key on an int id rather than the name.
+ *
+ * If the lexer fails to parse something (such as an unterminated string) a
+ * {@link ParseException} is thrown with an index at the character which is
  * invalid or missing.
  *
- * The {@link #peek(String...)} and {@link #match(String...)} functions are
- * helpers you need to use, they will make the implementation a lot easier.
+ * Characters are classified through the precomputed {@link #CLASSES} table
+ * rather than regular expressions, so scanning does no per-character
+ * allocation. The regex based {@link #peek(String...)} and {@link
+ * #match(String...)} helpers are kept for callers that rely on them.
  */
-public final class Lexer {
+public final class Lexer implements TokenSource {
+
+    /**
+     * The version of the tokens the lexer produces, which must be incremented
+     * whenever their types or offsets change for some input, so that tokens
+     * cached by a {@link TokenCache} under the previous version are ignored.
+     */
+    public static final int VERSION = 1;
+
+    private static final int WHITESPACE = 1;
+    private static final int IDENTIFIER_START = 2;
+    private static final int IDENTIFIER_PART = 4;
+    private static final int DIGIT = 8;
+    private static final int SIGN = 16;
+    private static final int STRING_BODY = 32;
+    private static final int OPERATOR = 64;
+
+    /**
+     * Character class flags for the ASCII range, indexed by character. Every
+     * character outside of this range has no flags set.
+     */
+    private static final byte[] CLASSES = new byte[128];
+
+    static {
+        mark(" \b\n\r\t", WHITESPACE);
+        mark("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz_", IDENTIFIER_START);
+        mark("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789_-", IDENTIFIER_PART);
+        mark("0123456789", DIGIT);
+        mark("+-", SIGN);
+        mark("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789!@#$%^&* ", STRING_BODY);
+        mark("$&+,:;=?@#|'<>*()%!", OPERATOR);
+        // the operator class has always included the range '.' to '^'
+        for (char c = '.'; c <= '^'; c++) {
+            CLASSES[c] |= OPERATOR;
+        }
+    }
+
+    /**
+     * The smallest number of characters worth lexing as a separate chunk in
+     * {@link #lexParallel(ForkJoinPool)}.
+     */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private static final ThreadLocal<Lexer> LOCAL = ThreadLocal.withInitial(() -> new Lexer(""));
 
     private final CharStream chars;
     private final List<Token> tokens = new ArrayList<>();
+    private SymbolTable symbols = new SymbolTable();
 
     public Lexer(String input) {
         chars = new CharStream(input);
     }
 
+    /**
+     * Lexes any character sequence, such as a {@link StringBuilder} or {@link
+     * java.nio.CharBuffer}, without copying it. Unless the input is a {@link
+     * String}, literals are sliced from it when requested, so it must not be
+     * modified while its tokens are in use.
+     */
+    public Lexer(CharSequence input) {
+        chars = new CharStream(input);
+    }
+
+    /**
+     * Lexes the {@code length} characters of {@code input} starting at {@code
+     * offset}, such as a script embedded in a larger document, without copying
+     * them. If {@code absolute} is true token indices are positions in the
+     * whole input, otherwise they are relative to {@code offset}.
+     */
+    public Lexer(CharSequence input, int offset, int length, boolean absolute) {
+        chars = new CharStream(input, offset, length, absolute);
+    }
+
+    public Lexer(Reader reader) {
+        chars = new CharStream(reader);
+    }
+
+    /**
+     * Lexes the UTF-8 encoded file at the given path through a read-only
+     * memory mapping. The file must not be modified while it, or any token
+     * produced from it, is in use.
+     */
+    public Lexer(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            chars = new CharStream(new MappedSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+        }
+    }
+
+    private Lexer(CharStream chars) {
+        this.chars = chars;
+    }
+
+    /**
+     * Returns the current thread's lexer, reset to the given input. This
+     * avoids allocating a new lexer and token list for every small input, but
+     * the returned lexer (and the list returned by {@link #lex()}) must not be
+     * used after the next call on the same thread.
+     */
+    public static Lexer local(CharSequence input) {
+        Lexer lexer = LOCAL.get();
+        lexer.reset(input);
+        return lexer;
+    }
+
+    /**
+     * Prepares this lexer for a new input, retaining its char stream and
+     * token list. The list returned by a previous call to {@link #lex()} is
+     * cleared. The symbol table is replaced by an empty one, so a reused
+     * lexer does not accumulate the identifiers of every input it has seen;
+     * to share a table between inputs, pass it to {@link
+     * #setSymbols(SymbolTable)} after each reset.
+     */
+    public void reset(CharSequence input) {
+        chars.reset(input);
+        tokens.clear();
+        symbols = new SymbolTable();
+    }
+
+    /**
+     * Returns the line starts recorded so far, which cover the whole input
+     * once it has been lexed. Lines are counted from the start of the lexed
+     * input, which for a window is its first character.
+     */
+    public SourceMap getSourceMap() {
+        return chars.lines;
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Sets the symbol table identifiers are interned into, allowing ids to be
+     * shared between several lexers, until the next {@link
+     * #reset(CharSequence)}.
+     */
+    public void setSymbols(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
     /**
      * Repeatedly lexes the input using {@link #lexToken()}, also skipping over
      * whitespace where appropriate.
@@ -34,8 +188,8 @@ public final class Lexer {
 
         while (chars.has(0))
         {
-            if (match("[ \b\n\r\t]"))
-                chars.skip();
+            if (is(chars.get(0), WHITESPACE))
+                chars.skipWhitespace();
             else
                 tokens.add(lexToken());
         }
@@ -44,153 +198,397 @@ public final class Lexer {
     }
 
     /**
-     * This method determines the type of the next token, delegating to the
-     * appropriate lex method. As such, it is best for this method to not change
-     * the state of the char stream (thus, use peek not match).
-     *
-     * The next character should start a valid token since whitespace is handled
-     * by {@link #lex()}
+     * Lexes the input as {@link #lex()} does, but instead of stopping at the
+     * first invalid token, adds its exception to {@code errors} and emits an
+     * {@link Token.Type#ERROR} token in its place. For a character or string
+     * literal the error token extends through the next matching quote on the
+     * same line, or up to the end of the line if there is none; otherwise it
+     * is just the invalid character. Lexing then continues from there, so
+     * every error is found in a single pass.
      */
-    public Token lexToken() {
+    public List<Token> lexRecovering(List<ParseException> errors) {
 
-        if (peek("[A-Za-z_]"))
+        while (chars.has(0))
         {
-            return lexIdentifier();
+            if (is(chars.get(0), WHITESPACE))
+                chars.skipWhitespace();
+            else
+            {
+                try {
+                    tokens.add(lexToken());
+                } catch (ParseException e) {
+                    errors.add(e);
+                    tokens.add(recover());
+                }
+            }
         }
 
-        else if (peek("[+-]0"))
-        {
-            return lexOperator();
-        }
-        else if (peek("[+-]?[0-9]")|peek("[+-]"))
+        return tokens;
+    }
+
+    /**
+     * Advances past the rest of a token which failed to lex and emits it as
+     * an error token, see {@link #lexRecovering(List)}.
+     */
+    private Token recover() {
+        if (chars.length == 0)
+            chars.advance();
+        else
         {
-            return lexNumber();
+            char quote = chars.get(-chars.length);
+            while (chars.has(0) && chars.get(0) != '\n' && chars.get(0) != '\r')
+            {
+                chars.advance();
+                if (chars.get(-1) == quote)
+                    break;
+            }
         }
 
-        else if (peek("'")) {
-            return lexCharacter();
+        return emit(Token.Type.ERROR);
+    }
+
+    /**
+     * Lexes the input in parallel, producing the same tokens as {@link #lex()}.
+     *
+     * The input is split into chunks at newlines, which can never occur inside
+     * a token, so each chunk can be lexed independently with global indices.
+     * Each chunk interns into its own symbol table, and the ids are remapped
+     * in chunk order afterwards so they match a sequential lex. If several
+     * chunks fail, the exception of the first one is thrown, which is the
+     * same exception sequential lexing would have reached first.
+     */
+    public List<Token> lexParallel(ForkJoinPool pool) {
+        if (chars.input == null)
+            throw new UnsupportedOperationException("Reader input cannot be lexed in parallel.");
+
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(chars.index);
+        int chunks = Math.max(1, Math.min(pool.getParallelism() * 4, (chars.limit - chars.index) / CHUNK_SIZE));
+        int size = (chars.limit - chars.index) / chunks;
+        for (int i = 1; i < chunks; i++) {
+            int split = Math.max(chars.index + i * size, bounds.get(bounds.size() - 1));
+            while (split < chars.limit && chars.input.charAt(split) != '\n')
+                split++;
+            if (split < chars.limit && split > bounds.get(bounds.size() - 1))
+                bounds.add(split);
+        }
+        bounds.add(chars.limit);
+
+        List<Lexer> chunkLexers = new ArrayList<>();
+        List<Callable<Lexer>> tasks = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            Lexer lexer = new Lexer(chars.chunk(bounds.get(i), bounds.get(i + 1)));
+            chunkLexers.add(lexer);
+            tasks.add(() -> {
+                lexer.lex();
+                return lexer;
+            });
         }
 
-        else if (peek("[\"]")) {
-            return lexString();
+        List<Lexer> lexers = new ArrayList<>();
+        for (Future<Lexer> future : pool.invokeAll(tasks)) {
+            try {
+                lexers.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while lexing.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ParseException) {
+                    // report the position against the lines of every chunk so far
+                    for (Lexer lexer : chunkLexers.subList(0, lexers.size() + 1))
+                        chars.lines.addLines(lexer.chars.lines);
+                    ParseException cause = (ParseException) e.getCause();
+                    throw new ParseException(cause.getMessage(), cause.getIndex(), chars.lines);
+                }
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
         }
 
+        for (Lexer lexer : lexers) {
+            int[] ids = new int[lexer.symbols.size()];
+            for (int id = 0; id < ids.length; id++)
+                ids[id] = symbols.intern(lexer.symbols.getName(id));
+            for (Token token : lexer.tokens) {
+                if (token.symbol >= 0)
+                    token.symbol = ids[token.symbol];
+            }
+            tokens.addAll(lexer.tokens);
+            chars.lines.addLines(lexer.chars.lines);
+        }
+        chars.index = chars.limit;
+        chars.skip();
 
-        else
-            return lexOperator();
+        return tokens;
+    }
 
+    /**
+     * Re-lexes the input after an edit, reusing the tokens of the previous
+     * version wherever the edit cannot have affected them. This lexer must be
+     * constructed over the text <em>after</em> the edit, in which {@code
+     * removed} characters at {@code offset} were replaced by {@code inserted};
+     * use {@link #setSymbols(SymbolTable)} to keep symbol ids consistent.
+     *
+     * A token is only affected if the edit starts at most one character past
+     * its end (the furthest the lexer looks ahead), so lexing restarts at the
+     * first such token. It stops once it reaches the start of an old token
+     * following the edit, since the lexer holds no state between tokens and
+     * the remaining text is unchanged. Those tokens are shifted by the change
+     * in length, producing the same tokens as {@link #lex()}.
+     *
+     * The returned list shares the unaffected tokens with {@code previous}
+     * rather than copying them, and the source map is rebuilt by scanning the
+     * whole input. Use {@link #relex(List, SourceMap, int, int, String)} to
+     * have it updated from the previous map instead.
+     */
+    public List<Token> relex(List<Token> previous, int offset, int removed, String inserted) {
+        return relex(previous, null, offset, removed, inserted);
     }
 
-    public Token lexIdentifier() {
+    /**
+     * Re-lexes the input after an edit as {@link #relex(List, int, int,
+     * String)} does, given the source map of the previous version. The new map
+     * is built from it by only scanning the inserted text.
+     */
+    public List<Token> relex(List<Token> previous, SourceMap lines, int offset, int removed, String inserted) {
+        if (chars.input == null)
+            throw new UnsupportedOperationException("Reader input cannot be re-lexed.");
+
+        int delta = inserted.length() - removed;
+        int low = 0;
+        int high = previous.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Token token = previous.get(middle);
+            if (token.getIndex() + token.getLiteral().length() + 1 < offset)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        int restart = low < previous.size() ? Math.min(previous.get(low).getIndex(), offset) : offset;
+        List<Token> relexed = new ArrayList<>();
 
-        while (match("[A-Za-z0-9_-]"))
-        {
+        int next = low;
+        while (next < previous.size() && previous.get(next).getIndex() < offset + removed)
+            next++;
 
+        Lexer lexer = new Lexer(new CharStream(chars.input, chars.slice, restart, chars.limit));
+        lexer.symbols = symbols;
+        while (true)
+        {
+            lexer.chars.skipWhitespace();
+            while (next < previous.size() && previous.get(next).getIndex() + delta < lexer.chars.index)
+                next++;
+            if (!lexer.chars.has(0) || next < previous.size() && previous.get(next).getIndex() + delta == lexer.chars.index)
+                break;
+            relexed.add(lexer.lexToken());
         }
 
-        return chars.emit(Token.Type.IDENTIFIER);
+        if (lines != null)
+            chars.lines = lines.edit(offset, removed, inserted);
+        else
+            chars.lines = SourceMap.of(chars.input, chars.lines.getLineStart(1), chars.limit);
+        chars.index = chars.limit;
+        chars.skip();
+
+        return SplicedTokens.splice(previous, low, next, relexed, delta);
     }
 
-        public Token lexNumber () {
-            if (peek("[+-]"))
-                match("[+-]");
-            while (match("[0-9]")) {
+    /**
+     * Skips any whitespace and lexes the next token, returning {@code null}
+     * once the input is exhausted.
+     */
+    @Override
+    public Token next() {
+        chars.skipWhitespace();
 
-            }
+        return chars.has(0) ? lexToken() : null;
+    }
 
-            if (peek(".", "[0-9]")) {
-                match("[.]");
-                while (match("[0-9]")) {
+    /**
+     * Lexes the input into a {@link TokenBuffer}, which records each token's
+     * type and offsets without creating {@link Token} objects. Literals are
+     * sliced from the input when requested. Not supported for input read
+     * from a {@link Reader}, as its characters are not retained.
+     */
+    public TokenBuffer lexBuffer() {
+        if (chars.input == null)
+            throw new UnsupportedOperationException("Reader input cannot back a token buffer.");
 
-                }
-                return chars.emit(Token.Type.DECIMAL);
+        TokenBuffer buffer = new TokenBuffer(chars.input, symbols);
+        while (chars.has(0))
+        {
+            if (is(chars.get(0), WHITESPACE))
+                chars.skipWhitespace();
+            else
+            {
+                Token.Type type = scanToken();
+                buffer.add(type, chars.index - chars.length, chars.index);
+                chars.skip();
             }
-
-            return chars.emit(Token.Type.INTEGER);
         }
 
+        return buffer;
+    }
+
+    /**
+     * This method determines the type of the next token, delegating to the
+     * appropriate lex method. As such, it is best for this method to not change
+     * the state of the char stream.
+     *
+     * The next character should start a valid token since whitespace is handled
+     * by {@link #lex()}
+     */
+    public Token lexToken() {
+        return emit(scanToken());
+    }
+
+    public Token lexIdentifier() {
+        return emit(scanIdentifier());
+    }
+
+    public Token lexNumber() {
+        return emit(scanNumber());
+    }
 
     public Token lexCharacter() {
-        match("[']");
-/*        if (peek("[^\n\r\\\b\t\"]"))
-        {
-            match("[^\n\r\\\b\t\"]");*/
-        if (peek("[^'\\n\\r\\\\]|'\\'[bnrt'\"\\\\]"))
+        return emit(scanCharacter());
+    }
+
+    public Token lexString() {
+        return emit(scanString());
+    }
+
+    public void lexEscape() {
+        match ("\\[bnrt'\"\\\\]");
+    }
+
+    public Token lexOperator() {
+        return emit(scanOperator());
+    }
+
+    /**
+     * Emits the current token, interning it if it is a non-keyword identifier.
+     */
+    private Token emit(Token.Type type) {
+        Token token = chars.emit(type);
+        if (type == Token.Type.IDENTIFIER && token.getKeyword() == null)
         {
-            match("[^'\\n\\r\\\\]|'\\'[bnrt'\"\\\\]");
-            if (peek("[']"))
-                match("[']");
-            else throw new ParseException("unterminated", chars.index);
+            token.symbol = chars.input != null
+                    ? symbols.intern(chars.input, token.getIndex(), chars.index)
+                    : symbols.intern(token.getLiteral());
         }
-        else throw new ParseException("Missing character", chars.index);
-        return chars.emit(Token.Type.CHARACTER);
+        return token;
     }
 
+    /**
+     * The scan methods advance the char stream over a single token and return
+     * its type, leaving it to the caller to emit or record the token.
+     */
+    private Token.Type scanToken() {
+        char c = chars.get(0);
+
+        if (is(c, IDENTIFIER_START))
+            return scanIdentifier();
+        else if (is(c, DIGIT | SIGN))
+            return scanNumber();
+        else if (c == '\'')
+            return scanCharacter();
+        else if (c == '"')
+            return scanString();
+        else
+            return scanOperator();
+    }
 
-    public Token lexString() {
-        match("[\"]");
-        while (peek("[A-Za-z0-9!@#$%^&* ]"))
-        {
-            if (peek ("\\\\")) {
-                System.out.println(" char \\\\ in string found");
-                match ("\\\\");
-                if (!peek ("[bnrt'\"\\\\]"))
-                    throw new ParseException("wrong escape char " , chars.index);
+    private Token.Type scanIdentifier() {
+        chars.advanceWhile(IDENTIFIER_PART);
 
-            }
-            match("[A-Za-z0-9!@#$%^&* \\\\]");
+        return Token.Type.IDENTIFIER;
+    }
 
-        }
-        System.out.println(" match string");
+    private Token.Type scanNumber() {
+        if (chars.has(0) && is(chars.get(0), SIGN))
+            chars.advance();
+        chars.advanceWhile(DIGIT);
 
-        if (match("\"")){
-            return chars.emit(Token.Type.STRING);
+        // The fraction check historically used peek(".", "[0-9]"), where the
+        // first pattern is the regex wildcard; any non line terminator followed
+        // by a digit ends the literal as a DECIMAL, but only '.' is consumed.
+        if (chars.has(1) && !isLineTerminator(chars.get(0)) && is(chars.get(1), DIGIT)) {
+            if (chars.get(0) == '.') {
+                chars.advance();
+                chars.advanceWhile(DIGIT);
+            }
+            return Token.Type.DECIMAL;
         }
 
-        else
+        return Token.Type.INTEGER;
+    }
+
+    private Token.Type scanCharacter() {
+        chars.advance();
+
+        if (chars.has(0) && isCharacterBody(chars.get(0)))
         {
-            //System.out.println(chars.emit(Token.Type.STRING));
-            throw new ParseException("Unterminated String", chars.index);
+            chars.advance();
+            if (chars.has(0) && chars.get(0) == '\'')
+                chars.advance();
+            else throw new ParseException("unterminated", chars.index, chars.lines);
         }
+        else throw new ParseException("Missing character", chars.index, chars.lines);
+        return Token.Type.CHARACTER;
     }
 
+    private Token.Type scanString() {
+        chars.advance();
+        chars.advanceWhile(STRING_BODY);
 
-/*    public Token lexString() {
-        match("[\"]");
-        // match the
-        while (!peek("[\"]")) {
-            if (peek("\\\\")) {
-                match("\\\\");
-                System.out.println(" char \\\\ in string found");
-                if (!match("[bnrt'\"\\\\]"))
-                    throw new ParseException("wrong escape char ", chars.index);
-            }
-            match("[A-Za-z0-9!@#$%^&* ]");
+        if (chars.has(0) && chars.get(0) == '"') {
+            chars.advance();
+            return Token.Type.STRING;
         }
+        else
+            throw new ParseException("Unterminated String", chars.index, chars.lines);
+    }
 
-        System.out.println(" match string");
+    private Token.Type scanOperator() {
+        if (chars.has(1) && chars.get(1) == '=' && isComparisonStart(chars.get(0)))
+        {
+            chars.advance();
+            chars.advance();
+        }
+        else if (is(chars.get(0), OPERATOR))
+            chars.advance();
+        else
+            throw new ParseException("Invalid character", chars.index, chars.lines);
 
-            return chars.emit(Token.Type.STRING);
-    }*/
+        return Token.Type.OPERATOR;
+    }
 
+    private static void mark(String characters, int flag) {
+        for (int i = 0; i < characters.length(); i++) {
+            CLASSES[characters.charAt(i)] |= flag;
+        }
+    }
 
-    public void lexEscape() {
-        match ("\\[bnrt'\"\\\\]");
+    /**
+     * Returns true if the character has any of the given class flags.
+     */
+    private static boolean is(char c, int flags) {
+        return c < CLASSES.length && (CLASSES[c] & flags) != 0;
     }
 
-    public Token lexOperator() {
-        if (peek("<","="))
-            match("<","=");
-        else if (peek(">","="))
-            match(">","=");
-        else if (peek("!","="))
-            match("!","=");
-        else if (peek("=","="))
-            match("=","=");
-        else if (peek("[$&+,:;=?@#|'<>.-^*()%!]"))
-            match("[$&+,:;=?@#|'<>.-^*()%!]");
+    private static boolean isCharacterBody(char c) {
+        return c != '\'' && c != '\n' && c != '\r' && c != '\\';
+    }
 
-        return chars.emit(Token.Type.OPERATOR);
+    private static boolean isComparisonStart(char c) {
+        return c == '<' || c == '>' || c == '!' || c == '=';
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
     }
 
     /**
@@ -210,7 +608,7 @@ public final class Lexer {
     /**
      * Returns true in the same way as {@link #peek(String...)}, but also
      * advances the character stream past all matched characters if peek returns
-     * true. Hint - it's easiest to have this method simply call peek.
+     * true.
      */
     public boolean match(String... patterns) {
         boolean peek = peek(patterns);
@@ -227,26 +625,146 @@ public final class Lexer {
      * A helper class maintaining the input string, current index of the char
      * stream, and the current length of the token being matched.
      *
-     * You should rely on peek/match for state management in nearly all cases.
+     * When reading from a {@link Reader}, characters are buffered in a window
+     * starting at the current token. Characters before the token are dropped
+     * whenever more input is needed, so the window only grows beyond its
+     * initial size for tokens longer than the window itself.
+     *
      * The only field you need to access is {@link #index} for any {@link
      * ParseException} which is thrown.
      */
     public static final class CharStream {
 
-        private final String input;
+        private static final int WINDOW_SIZE = 8192;
+
+        private CharSequence input;
+        private boolean slice;
+        private Reader reader;
+        private char[] window;
+        private int base = 0;
+        private int limit;
         private int index = 0;
         private int length = 0;
+        private SourceMap lines;
 
         public CharStream(String input) {
             this.input = input;
+            this.slice = false;
+            this.reader = null;
+            this.limit = input.length();
+            this.lines = new SourceMap();
+        }
+
+        /**
+         * Creates a stream over an arbitrary character sequence, such as a
+         * memory mapped file. Unless the sequence is a {@link String}, tokens
+         * reference the sequence and slice their literal from it the first
+         * time it is requested.
+         */
+        public CharStream(CharSequence input) {
+            reset(input);
+        }
+
+        /**
+         * Creates a stream over {@code length} characters of the input starting
+         * at {@code offset}, as described by {@link Lexer#Lexer(CharSequence,
+         * int, int, boolean)}.
+         */
+        public CharStream(CharSequence input, int offset, int length, boolean absolute) {
+            if (offset < 0 || length < 0 || offset > input.length() - length)
+                throw new IndexOutOfBoundsException("Window " + offset + "+" + length + " is outside of the input.");
+
+            if (absolute) {
+                this.input = input;
+                this.slice = !(input instanceof String);
+                this.index = offset;
+                this.limit = offset + length;
+                this.lines = new SourceMap(offset);
+            } else {
+                reset(offset == 0 ? input : new Region(input, offset, length));
+                this.limit = length;
+            }
+        }
+
+        private CharStream(CharSequence input, boolean slice, int start, int end) {
+            this.input = input;
+            this.slice = slice;
+            this.reader = null;
+            this.index = start;
+            this.limit = end;
+            this.lines = new SourceMap(start);
+        }
+
+        public CharStream(Reader reader) {
+            this.input = null;
+            this.slice = false;
+            this.reader = reader;
+            this.window = new char[WINDOW_SIZE];
+            this.limit = 0;
+            this.lines = new SourceMap();
+        }
+
+        /**
+         * Restarts the stream at the beginning of a new input, as with {@link
+         * #CharStream(CharSequence)}.
+         */
+        public void reset(CharSequence input) {
+            this.input = input;
+            this.slice = !(input instanceof String);
+            this.reader = null;
+            this.base = 0;
+            this.limit = input.length();
+            this.index = 0;
+            this.length = 0;
+            this.lines = new SourceMap();
+        }
+
+        /**
+         * A view of part of a sequence whose indices start at zero, used for
+         * windows with relative indices.
+         */
+        private static final class Region implements CharSequence {
+
+            private final CharSequence input;
+            private final int offset;
+            private final int length;
+
+            private Region(CharSequence input, int offset, int length) {
+                this.input = input;
+                this.offset = offset;
+                this.length = length;
+            }
+
+            @Override
+            public int length() {
+                return length;
+            }
+
+            @Override
+            public char charAt(int index) {
+                return input.charAt(offset + index);
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                return input.subSequence(offset + start, offset + end);
+            }
+
+            @Override
+            public String toString() {
+                return input.subSequence(offset, offset + length).toString();
+            }
+
         }
 
         public boolean has(int offset) {
-            return index + offset < input.length();
+            return index + offset < limit || fill(index + offset);
         }
 
         public char get(int offset) {
-            return input.charAt(index + offset);
+            if (input != null)
+                return input.charAt(index + offset);
+            return window[index + offset - base];
         }
 
         public void advance() {
@@ -258,10 +776,116 @@ public final class Lexer {
             length = 0;
         }
 
+        /**
+         * Advances over the run of characters which all have one of the given
+         * class flags, as {@code while (has(0) && is(get(0), flags))
+         * advance();} would. The position is kept in a local and the input is
+         * read directly, so a run costs one table lookup per character rather
+         * than a call to both {@link #has(int)} and {@link #get(int)}.
+         */
+        private void advanceWhile(int flags) {
+            int i = index;
+            if (input instanceof String) {
+                String string = (String) input;
+                while (i < limit && is(string.charAt(i), flags))
+                    i++;
+            } else if (input != null) {
+                while (i < limit && is(input.charAt(i), flags))
+                    i++;
+            } else {
+                while (true) {
+                    while (i < limit && is(window[i - base], flags))
+                        i++;
+                    length += i - index;
+                    index = i;
+                    // fill may move the window, so it is re-read afterwards
+                    if (i < limit || !fill(i))
+                        return;
+                }
+            }
+            length += i - index;
+            index = i;
+        }
+
+        /**
+         * Skips a run of whitespace, recording the start of each line in the
+         * source map. Tokens never contain a line terminator, so every line
+         * start is found here. A string is scanned and its line starts found
+         * in the same pass; other input is scanned by {@link
+         * #advanceWhile(int)} and then searched for line starts.
+         */
+        private void skipWhitespace() {
+            if (input instanceof String) {
+                String string = (String) input;
+                int i = index;
+                char c;
+                while (i < limit && is(c = string.charAt(i), WHITESPACE)) {
+                    i++;
+                    if (c == '\n')
+                        lines.addLine(i);
+                }
+                length += i - index;
+                index = i;
+            } else {
+                int start = index;
+                advanceWhile(WHITESPACE);
+                for (int i = start; i < index; i++) {
+                    if (get(i - index) == '\n')
+                        lines.addLine(i + 1);
+                }
+            }
+            skip();
+        }
+
         public Token emit(Token.Type type) {
             int start = index - length;
             skip();
-            return new Token(type, input.substring(start, index), start);
+            if (slice)
+                return new Token(type, input, start, index);
+            else if (input != null)
+                return new Token(type, input.subSequence(start, index).toString(), start);
+            return new Token(type, new String(window, start - base, index - start), start);
+        }
+
+        /**
+         * Returns a stream over part of this stream's input which reports
+         * indices relative to the whole input. Memory mapped input is given
+         * its own view, as decoding keeps a cursor that cannot be shared.
+         */
+        private CharStream chunk(int start, int end) {
+            CharSequence view = input instanceof MappedSource ? ((MappedSource) input).view() : input;
+            return new CharStream(view, slice, start, end);
+        }
+
+        /**
+         * Reads from the reader until the character at {@code position} is
+         * buffered, returning false if the input ends first.
+         */
+        private boolean fill(int position) {
+            if (reader == null)
+                return false;
+
+            int start = index - length;
+            if (position - base >= window.length) {
+                char[] target = position - start >= window.length
+                        ? new char[Math.max(window.length * 2, position - start + 1)]
+                        : window;
+                System.arraycopy(window, start - base, target, 0, limit - start);
+                window = target;
+                base = start;
+            }
+
+            try {
+                while (limit <= position) {
+                    int read = reader.read(window, limit - base, window.length - (limit - base));
+                    if (read < 0)
+                        return false;
+                    limit += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return true;
         }
 
     }
@@ -0,0 +1,78 @@
+package plc.project;
+
+import java.io.StringReader;
+
+/**
+ * Measures lexing throughput over whitespace-heavy, identifier-heavy and
+ * mixed sources, for the run scanning in {@link Lexer}. Each case is lexed
+ * a number of times to warm up and then timed, reporting the best run.
+ *
+ * Run with {@code java plc.project.LexerBenchmark [ws|id|mixed ...]}; with
+ * no arguments every case is measured.
+ */
+final class LexerBenchmark {
+
+    private static final int SIZE = 4_000_000;
+    private static final int WARMUPS = 10;
+    private static final int RUNS = 30;
+
+    public static void main(String[] args) {
+        String[] kinds = args.length > 0 ? args : new String[] {"ws", "id", "mixed"};
+        for (String kind : kinds) {
+            String source = source(kind);
+            System.out.printf("%-6s lexBuffer %7.1f MB/s   lex %7.1f MB/s   reader %7.1f MB/s%n", kind,
+                    measure(source, 0), measure(source, 1), measure(source, 2));
+        }
+    }
+
+    private static String source(String kind) {
+        String line;
+        switch (kind) {
+            case "ws":
+                line = "LET                              x = 1;\n\t\t\t\t        \n";
+                break;
+            case "id":
+                line = "LET averyveryverylongidentifiername_with_parts = another_quite_long_identifier_name + yet_another_long_name;\n";
+                break;
+            case "mixed":
+                line = "    LET x = y + 1;\n    print(\"hello world\", 42);\n";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown case " + kind + ", expected ws, id or mixed.");
+        }
+        StringBuilder builder = new StringBuilder(SIZE + line.length());
+        while (builder.length() < SIZE) {
+            builder.append(line);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the best throughput in MB/s (millions of characters) of
+     * lexing with a token buffer (0), into tokens (1) or from a reader (2).
+     */
+    private static double measure(String source, int mode) {
+        long best = Long.MAX_VALUE;
+        long tokens = 0;
+        for (int run = 0; run < WARMUPS + RUNS; run++) {
+            long start = System.nanoTime();
+            if (mode == 0) {
+                tokens += new Lexer(source).lexBuffer().size();
+            } else if (mode == 1) {
+                tokens += new Lexer(source).lex().size();
+            } else {
+                tokens += new Lexer(new StringReader(source)).lex().size();
+            }
+            long time = System.nanoTime() - start;
+            if (run >= WARMUPS) {
+                best = Math.min(best, time);
+            }
+        }
+        // keep the token counts live so the runs are not optimized away
+        if (tokens == 0) {
+            throw new AssertionError();
+        }
+        return source.length() / (best / 1e3);
+    }
+
+}
@@ -0,0 +1,113 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tests for {@link Lexer#lexParallel(ForkJoinPool)}, whose tokens, symbol
+ * ids, source map and errors must match lexing sequentially.
+ */
+final class LexerParallelTests {
+
+    private static final String METHOD = "DEF m%d() DO\n    LET s%d = \"a b c\";\n    print('x', 1.5, -2, s%d);\n    RETURN x%d + y * 2;\nEND\n";
+
+    @Test
+    void testMatchesSequential() {
+        String source = methods(20000);
+        assertParallel(source, new Lexer(source));
+    }
+
+    @Test
+    void testSmallInput() {
+        assertParallel("LET x = 1;", new Lexer("LET x = 1;"));
+        assertParallel("", new Lexer(""));
+    }
+
+    @Test
+    void testNoNewlines() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            builder.append("x").append(i % 100).append(" = 1; ");
+        }
+        assertParallel(builder.toString(), new Lexer(builder.toString()));
+    }
+
+    @Test
+    void testWindow() {
+        String source = methods(10000);
+        int start = source.indexOf("DEF m100(");
+        int end = source.indexOf("DEF m9000(");
+        String window = source.substring(start, end);
+        Lexer sequential = new Lexer(source, start, end - start, true);
+        List<Token> expected = sequential.lex();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Lexer parallel = new Lexer(source, start, end - start, true);
+            Assertions.assertEquals(expected, parallel.lexParallel(pool));
+            Assertions.assertEquals(new Lexer(window).lex().size(), expected.size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testFirstErrorReported() {
+        String source = methods(5000) + "LET c = 'ab';\n" + methods(5000) + "LET d = \"e\n";
+        ParseException expected = Assertions.assertThrows(ParseException.class, () -> new Lexer(source).lex());
+        ForkJoinPool pool = new ForkJoinPool(8);
+        try {
+            ParseException actual = Assertions.assertThrows(ParseException.class, () -> new Lexer(source).lexParallel(pool));
+            Assertions.assertEquals(expected.getMessage(), actual.getMessage());
+            Assertions.assertEquals(expected.getIndex(), actual.getIndex());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testReaderUnsupported() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Assertions.assertThrows(UnsupportedOperationException.class,
+                    () -> new Lexer(new StringReader("LET x = 1;")).lexParallel(pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void assertParallel(String source, Lexer sequential) {
+        List<Token> expected = sequential.lex();
+        for (int parallelism : new int[] {1, 2, 8}) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                Lexer parallel = new Lexer(source);
+                List<Token> actual = parallel.lexParallel(pool);
+                Assertions.assertEquals(expected, actual);
+                for (int i = 0; i < expected.size(); i++) {
+                    Assertions.assertEquals(expected.get(i).getSymbol(), actual.get(i).getSymbol());
+                }
+                Assertions.assertEquals(sequential.getSymbols().size(), parallel.getSymbols().size());
+                SourceMap lines = parallel.getSourceMap();
+                Assertions.assertEquals(sequential.getSourceMap().getLineCount(), lines.getLineCount());
+                for (int line = 1; line <= lines.getLineCount(); line++) {
+                    Assertions.assertEquals(sequential.getSourceMap().getLineStart(line), lines.getLineStart(line));
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static String methods(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(String.format(METHOD, i, i, i, i % 50));
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,78 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link Lexer#lexRecovering(List)}, which must report every
+ * invalid token in one pass and lex the rest as {@link Lexer#lex()} does.
+ */
+final class LexerRecoveringTests {
+
+    @Test
+    void testValidSource() {
+        String source = "LET x = 'c';\nDEF f() DO print(\"a b\", 1.5, x); END";
+        List<ParseException> errors = new ArrayList<>();
+        Assertions.assertEquals(new Lexer(source).lex(), new Lexer(source).lexRecovering(errors));
+        Assertions.assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    void testEveryError() {
+        String source = "LET c = 'ab';\nLET s = \"abc\nLET t = \"x~y\";\nLET d = '';\n~ x";
+        List<ParseException> errors = new ArrayList<>();
+        List<Token> tokens = new Lexer(source).lexRecovering(errors);
+        Assertions.assertEquals(Arrays.asList(10, 26, 37, 51, 54), indices(errors));
+        Assertions.assertEquals(Arrays.asList(
+                new Token(Token.Type.ERROR, "'ab'", 8),
+                new Token(Token.Type.ERROR, "\"abc", 22),
+                new Token(Token.Type.ERROR, "\"x~y\"", 35),
+                new Token(Token.Type.ERROR, "''", 50),
+                new Token(Token.Type.ERROR, "~", 54)
+        ), errorTokens(tokens));
+        Assertions.assertEquals(new Token(Token.Type.IDENTIFIER, "x", 56), tokens.get(tokens.size() - 1));
+    }
+
+    @Test
+    void testErrorsMatchLex() {
+        String source = "LET a = 1;\nLET b = 'xy';\nLET c = 2;\nLET d = \"e\n";
+        List<ParseException> errors = new ArrayList<>();
+        new Lexer(source).lexRecovering(errors);
+        ParseException first = Assertions.assertThrows(ParseException.class, () -> new Lexer(source).lex());
+        Assertions.assertEquals(2, errors.size());
+        Assertions.assertEquals(first.getMessage(), errors.get(0).getMessage());
+        Assertions.assertEquals(first.getIndex(), errors.get(0).getIndex());
+    }
+
+    @Test
+    void testTokensAfterErrorMatchLex() {
+        String valid = "DEF f() DO RETURN x * 2; END\n";
+        String source = "LET s = \"unterminated\n" + valid;
+        List<Token> tokens = new Lexer(source).lexRecovering(new ArrayList<>());
+        List<Token> expected = new Lexer(source, source.indexOf("DEF"), valid.length(), true).lex();
+        Assertions.assertEquals(expected, tokens.subList(tokens.size() - expected.size(), tokens.size()));
+    }
+
+    private static List<Integer> indices(List<ParseException> errors) {
+        List<Integer> indices = new ArrayList<>();
+        for (ParseException error : errors) {
+            indices.add(error.getIndex());
+        }
+        return indices;
+    }
+
+    private static List<Token> errorTokens(List<Token> tokens) {
+        List<Token> errors = new ArrayList<>();
+        for (Token token : tokens) {
+            if (token.getType() == Token.Type.ERROR) {
+                errors.add(token);
+            }
+        }
+        return errors;
+    }
+
+}
@@ -0,0 +1,204 @@
+package plc.project;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CharSequence} view of UTF-8 encoded bytes, typically a memory
+ * mapped source file, which is decoded in place as characters are requested.
+ *
+ * Files that are entirely ASCII are indexed directly. Otherwise the byte
+ * offset of every {@link #STRIDE}th character is recorded when the source is
+ * opened, and {@link #charAt(int)} walks forward from the nearest checkpoint
+ * or from the previous position. Each byte of a malformed sequence decodes
+ * as U+FFFD.
+ *
+ * {@link #charAt(int)} keeps a cursor and is meant for the (single threaded)
+ * lexer, while {@link #subSequence(int, int)} may be called from any thread to
+ * slice token literals.
+ */
+final class MappedSource implements CharSequence {
+
+    private static final int STRIDE = 1024;
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final ByteBuffer bytes;
+    private final int length;
+    private final boolean ascii;
+    private final int[] checkpointChars;
+    private final int[] checkpointBytes;
+    private final int checkpoints;
+    private int cursorChar = 0;
+    private int cursorByte = 0;
+
+    MappedSource(ByteBuffer bytes) {
+        this.bytes = bytes;
+
+        int size = bytes.limit();
+        boolean ascii = true;
+        for (int i = 0; i < size && ascii; i++) {
+            ascii = bytes.get(i) >= 0;
+        }
+        this.ascii = ascii;
+
+        if (ascii) {
+            length = size;
+            checkpointChars = null;
+            checkpointBytes = null;
+            checkpoints = 0;
+        } else {
+            int chars = 0;
+            int count = 0;
+            int[] cpChars = new int[size / STRIDE + 1];
+            int[] cpBytes = new int[size / STRIDE + 1];
+            for (int position = 0; position < size; ) {
+                if (chars >= count * STRIDE) {
+                    cpChars[count] = chars;
+                    cpBytes[count++] = position;
+                }
+                int width = width(position);
+                chars += width == 4 ? 2 : 1;
+                position += width;
+            }
+            length = chars;
+            checkpointChars = cpChars;
+            checkpointBytes = cpBytes;
+            checkpoints = count;
+        }
+    }
+
+    private MappedSource(MappedSource source) {
+        this.bytes = source.bytes;
+        this.length = source.length;
+        this.ascii = source.ascii;
+        this.checkpointChars = source.checkpointChars;
+        this.checkpointBytes = source.checkpointBytes;
+        this.checkpoints = source.checkpoints;
+    }
+
+    /**
+     * Returns a view of the same bytes with its own cursor, so that several
+     * threads can each read through {@link #charAt(int)}.
+     */
+    MappedSource view() {
+        return new MappedSource(this);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        if (ascii) {
+            return (char) bytes.get(index);
+        }
+
+        if (index < cursorChar || index - cursorChar > STRIDE) {
+            int checkpoint = checkpoint(index);
+            cursorChar = checkpointChars[checkpoint];
+            cursorByte = checkpointBytes[checkpoint];
+        }
+        int width = width(cursorByte);
+        while (cursorChar + (width == 4 ? 2 : 1) <= index) {
+            cursorChar += width == 4 ? 2 : 1;
+            cursorByte += width;
+            width = width(cursorByte);
+        }
+        return decode(cursorByte, width, index - cursorChar);
+    }
+
+    @Override
+    public String subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        char[] result = new char[end - start];
+        if (ascii) {
+            for (int i = start; i < end; i++) {
+                result[i - start] = (char) bytes.get(i);
+            }
+            return new String(result);
+        }
+
+        int checkpoint = checkpoint(start);
+        int chars = checkpointChars[checkpoint];
+        int position = checkpointBytes[checkpoint];
+        while (chars < end) {
+            int width = width(position);
+            int count = width == 4 ? 2 : 1;
+            for (int i = 0; i < count; i++) {
+                if (chars + i >= start && chars + i < end) {
+                    result[chars + i - start] = decode(position, width, i);
+                }
+            }
+            chars += count;
+            position += width;
+        }
+        return new String(result);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length);
+    }
+
+    /**
+     * Returns the index of the last checkpoint at or before the character.
+     */
+    private int checkpoint(int index) {
+        int checkpoint = Math.min(index / STRIDE, checkpoints - 1);
+        while (checkpointChars[checkpoint] > index) {
+            checkpoint--;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Returns the number of bytes in the sequence starting at the position,
+     * treating malformed or truncated sequences as a single byte.
+     */
+    private int width(int position) {
+        int lead = bytes.get(position) & 0xFF;
+        int width = lead < 0x80 ? 1 : lead < 0xC2 ? 0 : lead < 0xE0 ? 2 : lead < 0xF0 ? 3 : lead < 0xF5 ? 4 : 0;
+        if (width <= 1 || position + width > bytes.limit()) {
+            return 1;
+        }
+        int second = bytes.get(position + 1) & 0xFF;
+        if (lead == 0xE0 && second < 0xA0 || lead == 0xED && second >= 0xA0
+                || lead == 0xF0 && second < 0x90 || lead == 0xF4 && second >= 0x90) {
+            return 1;
+        }
+        for (int i = 1; i < width; i++) {
+            if ((bytes.get(position + i) & 0xC0) != 0x80) {
+                return 1;
+            }
+        }
+        return width;
+    }
+
+    /**
+     * Decodes the sequence at the position, returning the high (part 0) or low
+     * (part 1) surrogate for supplementary characters.
+     */
+    private char decode(int position, int width, int part) {
+        int lead = bytes.get(position) & 0xFF;
+        switch (width) {
+            case 2:
+                return (char) ((lead & 0x1F) << 6 | bytes.get(position + 1) & 0x3F);
+            case 3:
+                return (char) ((lead & 0x0F) << 12 | (bytes.get(position + 1) & 0x3F) << 6
+                        | bytes.get(position + 2) & 0x3F);
+            case 4:
+                int codePoint = (lead & 0x07) << 18 | (bytes.get(position + 1) & 0x3F) << 12
+                        | (bytes.get(position + 2) & 0x3F) << 6 | bytes.get(position + 3) & 0x3F;
+                return part == 0 ? Character.highSurrogate(codePoint) : Character.lowSurrogate(codePoint);
+            default:
+                return lead < 0x80 ? (char) lead : REPLACEMENT;
+        }
+    }
+
+}
@@ -3,14 +3,46 @@ package plc.project;
 public final class ParseException extends RuntimeException {
 
     private final int index;
+    private final SourceMap sourceMap;
 
     public ParseException(String message, int index) {
+        this(message, index, null);
+    }
+
+    /**
+     * Creates an exception whose index can be translated to a line and column
+     * through the given source map, which may be {@code null}.
+     */
+    public ParseException(String message, int index, SourceMap sourceMap) {
         super(message);
         this.index = index;
+        this.sourceMap = sourceMap;
     }
 
     public int getIndex() {
         return index;
     }
 
+    /**
+     * Returns the source map of the input, or {@code null} if none was
+     * available when the exception was thrown.
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
+    /**
+     * Returns the line of {@link #getIndex()}, or -1 without a source map.
+     */
+    public int getLine() {
+        return sourceMap == null ? -1 : sourceMap.getLine(index);
+    }
+
+    /**
+     * Returns the column of {@link #getIndex()}, or -1 without a source map.
+     */
+    public int getColumn() {
+        return sourceMap == null ? -1 : sourceMap.getColumn(index);
+    }
+
 }
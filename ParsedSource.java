@@ -0,0 +1,211 @@
+package plc.project;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A parsed source together with its tokens and the token span of each field
+ * and method, which allows it to be reparsed incrementally after an edit.
+ *
+ * {@link #edit(int, int, String)} re-lexes the edited text with {@link
+ * Lexer#relex(List, SourceMap, int, int, String)} and only reparses the members the edit
+ * can have affected. Every other {@link Ast.Field} and {@link Ast.Method} is
+ * reused by identity, so anything keyed on those nodes stays valid. The
+ * resulting source is equal to parsing the new text from scratch.
+ */
+public final class ParsedSource {
+
+    private final String text;
+    private final SymbolTable symbols;
+    private final List<Token> tokens;
+    private final SourceMap lines;
+    private final Ast.Source source;
+    private final int[] starts;
+    private final int[] ends;
+
+    private ParsedSource(String text, SymbolTable symbols, List<Token> tokens, SourceMap lines, Ast.Source source, int[] starts, int[] ends) {
+        this.text = text;
+        this.symbols = symbols;
+        this.tokens = tokens;
+        this.lines = lines;
+        this.source = source;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Lexes and parses the given text, as with {@link Parser#parseSource()}.
+     */
+    public static ParsedSource parse(String text) throws ParseException {
+        Lexer lexer = new Lexer(text);
+        List<Token> tokens = lexer.lex();
+        Members members = new Members();
+        members.parse(tokens, 0, true, null, 0, 0, lexer.getSourceMap());
+        return members.build(text, lexer.getSymbols(), tokens, lexer.getSourceMap());
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public List<Token> getTokens() {
+        return tokens;
+    }
+
+    public Ast.Source getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the number of fields and methods, which are numbered with the
+     * fields first and then the methods, in order.
+     */
+    public int getMemberCount() {
+        return starts.length;
+    }
+
+    /**
+     * Returns the index of the first token of a member, which is its
+     * {@code LET} or {@code DEF}.
+     */
+    public int getStart(int member) {
+        return starts[member];
+    }
+
+    /**
+     * Returns the index after the last token of a member.
+     */
+    public int getEnd(int member) {
+        return ends[member];
+    }
+
+    /**
+     * Returns the result of replacing {@code removed} characters at {@code
+     * offset} with {@code inserted}.
+     *
+     * A member is affected if the edit starts at most one character past its
+     * end, the furthest the lexer looks ahead. Members before the first
+     * affected one are reused as they are. Reparsing starts at the first
+     * affected member and stops as soon as it reaches the start of a member
+     * which was entirely after the edit, since parsing from there on is
+     * unchanged. That member and all following ones are reused, with their
+     * token spans shifted.
+     */
+    public ParsedSource edit(int offset, int removed, String inserted) throws ParseException {
+        if (offset < 0 || removed < 0 || offset > text.length() - removed)
+            throw new IndexOutOfBoundsException("Edit " + offset + "+" + removed + " is outside of the text.");
+
+        String edited = text.substring(0, offset) + inserted + text.substring(offset + removed);
+        Lexer lexer = new Lexer(edited);
+        lexer.setSymbols(symbols);
+        List<Token> relexed = lexer.relex(tokens, lines, offset, removed, inserted);
+
+        int first = 0;
+        while (first < starts.length && end(first) + 1 < offset)
+            first++;
+        int resume = first;
+        while (resume < starts.length && start(resume) < offset + removed)
+            resume++;
+
+        Members members = new Members();
+        for (int i = 0; i < first; i++)
+            members.add(member(i), starts[i], ends[i]);
+        int start = first < starts.length ? starts[first] : first > 0 ? ends[first - 1] : 0;
+        boolean fields = first == 0 || first - 1 < source.getFields().size();
+        members.parse(relexed, start, fields, this, resume, inserted.length() - removed, lexer.getSourceMap());
+        return members.build(edited, symbols, relexed, lexer.getSourceMap());
+    }
+
+    private Ast member(int member) {
+        int fields = source.getFields().size();
+        return member < fields ? source.getFields().get(member) : source.getMethods().get(member - fields);
+    }
+
+    /**
+     * Returns the character index of the first token of a member.
+     */
+    private int start(int member) {
+        return tokens.get(starts[member]).getIndex();
+    }
+
+    /**
+     * Returns the character index after the last token of a member.
+     */
+    private int end(int member) {
+        Token last = tokens.get(ends[member] - 1);
+        return last.getIndex() + last.getLiteral().length();
+    }
+
+    /**
+     * Collects the members of a new parse.
+     */
+    private static final class Members {
+
+        private final List<Ast.Field> fields = new ArrayList<>();
+        private final List<Ast.Method> methods = new ArrayList<>();
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int size = 0;
+
+        private void add(Ast member, int start, int end) {
+            if (member instanceof Ast.Field)
+                fields.add((Ast.Field) member);
+            else
+                methods.add((Ast.Method) member);
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        /**
+         * Parses members from the token at {@code index} as {@link
+         * Parser#parseSource()} would, while {@code fields} are still allowed.
+         * If a previous parse is given, parsing stops at the start of any of
+         * its members from {@code resume} on, moved by {@code shift}
+         * characters, and the remaining members are reused instead.
+         */
+        private void parse(List<Token> tokens, int index, boolean fields, ParsedSource previous, int resume, int shift, SourceMap sourceMap) {
+            Parser parser = new Parser(tokens);
+            parser.setSourceMap(sourceMap);
+            while (index < tokens.size()) {
+                Token token = tokens.get(index);
+                if (previous != null) {
+                    while (resume < previous.starts.length && previous.start(resume) + shift < token.getIndex())
+                        resume++;
+                    // the text from here on is unchanged, so it parses the same
+                    if (resume < previous.starts.length && previous.start(resume) + shift == token.getIndex()
+                            && (fields || resume >= previous.source.getFields().size())) {
+                        int delta = index - previous.starts[resume];
+                        for (int i = resume; i < previous.starts.length; i++)
+                            add(previous.member(i), previous.starts[i] + delta, previous.ends[i] + delta);
+                        return;
+                    }
+                }
+
+                if (fields && token.getKeyword() == Token.Keyword.LET) {
+                    parser.setIndex(index + 1);
+                    add(parser.parseField(), index, parser.getIndex());
+                } else if (token.getKeyword() == Token.Keyword.DEF) {
+                    fields = false;
+                    parser.setIndex(index + 1);
+                    add(parser.parseMethod(), index, parser.getIndex());
+                } else {
+                    return;
+                }
+                index = parser.getIndex();
+            }
+        }
+
+        private ParsedSource build(String text, SymbolTable symbols, List<Token> tokens, SourceMap lines) {
+            return new ParsedSource(text, symbols, tokens, lines, new Ast.Source(fields, methods),
+                    Arrays.copyOf(starts, size), Arrays.copyOf(ends, size));
+        }
+
+    }
+
+}
@@ -0,0 +1,121 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for {@link ParsedSource#edit(int, int, String)}, whose result must
+ * equal parsing the edited text from scratch while reusing every member the
+ * edit cannot have affected.
+ */
+final class ParsedSourceTests {
+
+    private static final String SOURCE = "LET a = 1 + b;\nLET c = 2;\n"
+            + "DEF f() DO LET x = 1; END\n"
+            + "DEF g() DO WHILE x DO LET y = x + 1; END END\n"
+            + "DEF h() DO RETURN z; END\n";
+    private static final String[] INSERTS = {"", " ", "x", "1", ";", "END", "DEF", "LET", "\n", "DEF k() DO END ", "LET q = 3; ", "+", "'a'"};
+
+    @Test
+    void testEditInsideMethod() {
+        ParsedSource parsed = ParsedSource.parse(SOURCE);
+        ParsedSource edited = assertEdit(parsed, SOURCE.indexOf("x + 1"), 1, "count");
+        Ast.Source before = parsed.getSource();
+        Ast.Source after = edited.getSource();
+        Assertions.assertSame(before.getFields().get(0), after.getFields().get(0));
+        Assertions.assertSame(before.getFields().get(1), after.getFields().get(1));
+        Assertions.assertSame(before.getMethods().get(0), after.getMethods().get(0));
+        Assertions.assertNotSame(before.getMethods().get(1), after.getMethods().get(1));
+        Assertions.assertSame(before.getMethods().get(2), after.getMethods().get(2));
+    }
+
+    @Test
+    void testEditInsideField() {
+        ParsedSource parsed = ParsedSource.parse(SOURCE);
+        ParsedSource edited = assertEdit(parsed, SOURCE.indexOf("2;"), 1, "3 * 4");
+        Assertions.assertSame(parsed.getSource().getFields().get(0), edited.getSource().getFields().get(0));
+        Assertions.assertNotSame(parsed.getSource().getFields().get(1), edited.getSource().getFields().get(1));
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertSame(parsed.getSource().getMethods().get(i), edited.getSource().getMethods().get(i));
+        }
+    }
+
+    @Test
+    void testInsertMember() {
+        ParsedSource parsed = ParsedSource.parse(SOURCE);
+        ParsedSource edited = assertEdit(parsed, SOURCE.indexOf("DEF h"), 0, "DEF k() DO RETURN 1; END\n");
+        Assertions.assertEquals(parsed.getMemberCount() + 1, edited.getMemberCount());
+        Assertions.assertSame(parsed.getSource().getMethods().get(2), edited.getSource().getMethods().get(3));
+    }
+
+    @Test
+    void testRemoveMember() {
+        ParsedSource parsed = ParsedSource.parse(SOURCE);
+        int start = SOURCE.indexOf("DEF g");
+        ParsedSource edited = assertEdit(parsed, start, SOURCE.indexOf("DEF h") - start, "");
+        Assertions.assertEquals(parsed.getMemberCount() - 1, edited.getMemberCount());
+        Assertions.assertSame(parsed.getSource().getMethods().get(2), edited.getSource().getMethods().get(1));
+    }
+
+    @Test
+    void testInvalidEdit() {
+        ParsedSource parsed = ParsedSource.parse(SOURCE);
+        String edited = SOURCE.replace("DEF g() DO", "DEF g() DO y = ;");
+        ParseException expected = Assertions.assertThrows(ParseException.class,
+                () -> new Parser(new Lexer(edited).lex()).parseSource());
+        ParseException actual = Assertions.assertThrows(ParseException.class,
+                () -> parsed.edit(SOURCE.indexOf("DEF g() DO") + 10, 0, " y = ;"));
+        Assertions.assertEquals(expected.getIndex(), actual.getIndex());
+        Assertions.assertEquals(SOURCE, parsed.getText());
+    }
+
+    @Test
+    void testEditOutsideText() {
+        ParsedSource parsed = ParsedSource.parse(SOURCE);
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> parsed.edit(SOURCE.length(), 1, ""));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> parsed.edit(-1, 0, "x"));
+    }
+
+    @Test
+    void testRandomEdits() {
+        Random random = new Random(4);
+        ParsedSource parsed = ParsedSource.parse(SOURCE);
+        for (int i = 0; i < 1000; i++) {
+            String text = parsed.getText();
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(Math.min(4, text.length() - offset) + 1);
+            String inserted = INSERTS[random.nextInt(INSERTS.length)];
+            String edited = text.substring(0, offset) + inserted + text.substring(offset + removed);
+            try {
+                new Parser(new Lexer(edited).lex()).parseSource();
+            } catch (ParseException e) {
+                ParsedSource previous = parsed;
+                Assertions.assertThrows(ParseException.class, () -> previous.edit(offset, removed, inserted));
+                continue;
+            }
+            parsed = assertEdit(parsed, offset, removed, inserted);
+        }
+    }
+
+    /**
+     * Applies an edit and checks its tree, tokens and member spans against
+     * parsing the edited text from scratch.
+     */
+    private static ParsedSource assertEdit(ParsedSource parsed, int offset, int removed, String inserted) {
+        ParsedSource edited = parsed.edit(offset, removed, inserted);
+        String text = parsed.getText();
+        ParsedSource fresh = ParsedSource.parse(text.substring(0, offset) + inserted + text.substring(offset + removed));
+        Assertions.assertEquals(fresh.getText(), edited.getText());
+        Assertions.assertEquals(fresh.getSource(), edited.getSource());
+        Assertions.assertEquals(fresh.getTokens(), edited.getTokens());
+        Assertions.assertEquals(fresh.getMemberCount(), edited.getMemberCount());
+        for (int i = 0; i < fresh.getMemberCount(); i++) {
+            Assertions.assertEquals(fresh.getStart(i), edited.getStart(i));
+            Assertions.assertEquals(fresh.getEnd(i), edited.getEnd(i));
+        }
+        return edited;
+    }
+
+}
@@ -2,9 +2,18 @@ package plc.project;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * The parser takes the sequence of tokens emitted by the lexer and turns that
@@ -18,15 +27,160 @@ import java.util.Optional;
  * This type of parser is called <em>recursive descent</em>. Each rule in our
  * grammar will have it's own function, and reference to other rules correspond
  * to calling that functions.
+ *
+ * Tokens may be given as a list, as a {@link TokenBuffer}, or as a {@link
+ * TokenSource}, in which case they are pulled lazily through a small
+ * lookahead buffer.
  */
 public final class Parser {
 
+    /**
+     * The version of the grammar and of the {@link Ast} it is parsed into,
+     * which must be incremented whenever either changes, so that trees
+     * cached by an {@link AstCache} under the previous version are ignored.
+     */
+    public static final int GRAMMAR_VERSION = 1;
+
+    private static final int LOGICAL = 1;
+    private static final int EQUALITY = 2;
+    private static final int ADDITIVE = 3;
+    private static final int MULTIPLICATIVE = 4;
+
+    private static final int BINARY = 0;
+    private static final int GROUP = 1;
+    private static final int CALL = 2;
+
+    /**
+     * The binary operator table, see {@link #register(String, int)}.
+     * Operators which are a single ASCII character are indexed by that
+     * character, and longer ones by their literal.
+     */
+    private static final Operator[] KEYWORD_OPERATORS = new Operator[Token.Keyword.values().length];
+    private static final Operator[] CHAR_OPERATORS = new Operator[128];
+    private static final Map<String, Operator> LITERAL_OPERATORS = new HashMap<>();
+    private static final boolean[] OPERATOR_STARTS = new boolean[128];
+    private static int LONGEST_OPERATOR = 1;
+
+    static {
+        register("AND", LOGICAL);
+        register("OR", LOGICAL);
+        register("<", EQUALITY);
+        register("<=", EQUALITY);
+        register(">", EQUALITY);
+        register(">=", EQUALITY);
+        register("==", EQUALITY);
+        register("!=", EQUALITY);
+        register("+", ADDITIVE);
+        register("-", ADDITIVE);
+        register("*", MULTIPLICATIVE);
+        register("/", MULTIPLICATIVE);
+    }
+
+    private static final ThreadLocal<Parser> LOCAL = ThreadLocal.withInitial(() -> new Parser(new ArrayList<>()));
+
     private final TokenStream tokens;
+    private SourceMap sourceMap;
+    private List<ParseException> errors;
+    private boolean iterative = false;
+    private AstFactory factory = AstFactory.PLAIN;
+    private Map<Ast, Long> spans;
+
+    /**
+     * The constant pool, which shares the value of identical literals within
+     * a parse. Literals are keyed by their text, so a repeated literal is
+     * neither decoded nor allocated again.
+     */
+    private final Map<String, BigInteger> integers = new HashMap<>();
+    private final Map<String, BigDecimal> decimals = new HashMap<>();
+    private final Map<String, String> strings = new HashMap<>();
+    private char[] decoded = new char[0];
 
     public Parser(List<Token> tokens) {
         this.tokens = new TokenStream(tokens);
     }
 
+    public Parser(TokenBuffer buffer) {
+        this.tokens = new TokenStream(buffer);
+    }
+
+    /**
+     * Parses tokens pulled from the given source. If it is a {@link Lexer},
+     * its source map is used for any {@link ParseException}.
+     */
+    public Parser(TokenSource source) {
+        this.tokens = new TokenStream(source);
+        if (source instanceof Lexer)
+            this.sourceMap = ((Lexer) source).getSourceMap();
+    }
+
+    /**
+     * Returns the current thread's parser, reset to the given tokens. The
+     * returned parser must not be used after the next call on the same
+     * thread; see {@link Lexer#local(CharSequence)}.
+     */
+    public static Parser local(List<Token> tokens) {
+        Parser parser = LOCAL.get();
+        parser.reset(tokens);
+        return parser;
+    }
+
+    /**
+     * Prepares this parser for a new list of tokens.
+     */
+    public void reset(List<Token> tokens) {
+        this.tokens.reset(tokens);
+        this.sourceMap = null;
+        this.iterative = false;
+        this.factory = AstFactory.PLAIN;
+        this.integers.clear();
+        this.decimals.clear();
+        this.strings.clear();
+    }
+
+    /**
+     * Returns the index of the next token in the list or buffer being parsed.
+     */
+    int getIndex() {
+        return tokens.index;
+    }
+
+    /**
+     * Moves to the token at the given index of the list or buffer being
+     * parsed, such as the start of a member being reparsed.
+     */
+    void setIndex(int index) {
+        tokens.index = index;
+    }
+
+    /**
+     * Sets whether expressions are parsed with an explicit stack on the heap
+     * rather than by recursion, so that expressions nested to any depth can
+     * be parsed without overflowing the thread's stack. The result, and any
+     * {@link ParseException}, is the same either way. Statements are still
+     * parsed recursively. This is reset by {@link #reset(List)}.
+     */
+    public void setIterative(boolean iterative) {
+        this.iterative = iterative;
+    }
+
+    /**
+     * Sets the factory creating expressions, such as an interning {@link
+     * AstFactory} to share equal subexpressions. By default, or if {@code
+     * null} is given, every expression is created anew. This is reset by
+     * {@link #reset(List)}.
+     */
+    public void setFactory(AstFactory factory) {
+        this.factory = factory != null ? factory : AstFactory.PLAIN;
+    }
+
+    /**
+     * Sets the source map attached to any {@link ParseException}, so that its
+     * index can be reported as a line and column.
+     */
+    public void setSourceMap(SourceMap sourceMap) {
+        this.sourceMap = sourceMap;
+    }
+
     /**
      * Parses the {@code source} rule.
      */
@@ -35,16 +189,253 @@ public final class Parser {
         List<Ast.Field> fields= new ArrayList<Ast.Field>();
         List<Ast.Method> methods= new ArrayList<Ast.Method>();
 
-        while (match("LET")){
+        while (match(Token.Keyword.LET)){
             fields.add(parseField());
         }
-        while (match ("DEF")) {
+        while (match(Token.Keyword.DEF)) {
             methods.add(parseMethod());
         }
-        //else throw new ParseException("Invalid token", tokens.get(-1).getIndex());
+        //else throw new ParseException("Invalid token", tokens.get(-1).getIndex(), sourceMap);
         return new Ast.Source(fields, methods);
     }
 
+    /**
+     * Parses the {@code source} rule into a {@link FlatAst}, in which every
+     * node records its token span. Each field and method is encoded as soon
+     * as it is parsed, so only the {@link Ast} of one member is held at a
+     * time. Spans are recorded per node, so expressions are not interned
+     * here even if an interning {@link AstFactory} is set.
+     */
+    public FlatAst parseSourceFlat() throws ParseException {
+        FlatAst.Builder builder = new FlatAst.Builder();
+        List<Integer> fields = new ArrayList<>();
+        List<Integer> methods = new ArrayList<>();
+        AstFactory factory = this.factory;
+        this.factory = AstFactory.PLAIN;
+        spans = new IdentityHashMap<>();
+        try {
+            int start = tokens.index;
+            while (match(Token.Keyword.LET)) {
+                fields.add(builder.add(parseField(), spans, span(start)));
+                spans.clear();
+                start = tokens.index;
+            }
+            while (match(Token.Keyword.DEF)) {
+                methods.add(builder.add(parseMethod(), spans, span(start)));
+                spans.clear();
+                start = tokens.index;
+            }
+            return builder.build(fields.stream().mapToInt(Integer::intValue).toArray(),
+                    methods.stream().mapToInt(Integer::intValue).toArray(), span(0));
+        } finally {
+            spans = null;
+            this.factory = factory;
+        }
+    }
+
+    /**
+     * Parses the {@code source} rule as {@link #parseSource()} does, but
+     * parses the methods in parallel on the given pool. Only supported for a
+     * list or buffer of tokens.
+     *
+     * Fields are parsed first, then the remaining tokens are scanned for the
+     * top level method boundaries. DEF, WHILE and FOR open a block and END
+     * closes one; IF does not, since its END is consumed by the enclosing
+     * block. Groups of consecutive methods are then parsed by separate
+     * parsers over the same tokens. Each method must start at the DEF found by
+     * the scan and end exactly at the next boundary, so the result is the
+     * same as parsing sequentially. If any method fails to parse or the scan
+     * was wrong, the methods are parsed again sequentially, so that any
+     * exception is the one {@link #parseSource()} would throw.
+     */
+    public Ast.Source parseSourceParallel(ForkJoinPool pool) throws ParseException {
+        if (tokens.source != null)
+            throw new UnsupportedOperationException("Streamed tokens cannot be parsed in parallel.");
+
+        List<Ast.Field> fields = new ArrayList<Ast.Field>();
+        while (match(Token.Keyword.LET)) {
+            fields.add(parseField());
+        }
+
+        List<Integer> bounds = methodBounds();
+        int groups = Math.min(pool.getParallelism() * 4, bounds.size() - 1);
+        if (groups < 2) {
+            return new Ast.Source(fields, parseMethods());
+        }
+
+        List<Callable<List<Ast.Method>>> tasks = new ArrayList<>();
+        for (int i = 0; i < groups; i++) {
+            List<Integer> group = bounds.subList(i * (bounds.size() - 1) / groups, (i + 1) * (bounds.size() - 1) / groups + 1);
+            // each parser reads a view of a mapped source, whose cursor is not shared
+            Parser parser = tokens.tokens != null ? new Parser(tokens.tokens) : new Parser(tokens.buffer.view());
+            parser.sourceMap = sourceMap;
+            parser.iterative = iterative;
+            parser.factory = factory;
+            tasks.add(() -> parser.parseMethods(group));
+        }
+
+        List<Ast.Method> methods = new ArrayList<Ast.Method>();
+        try {
+            for (Future<List<Ast.Method>> future : pool.invokeAll(tasks)) {
+                List<Ast.Method> group = future.get();
+                if (group == null) {
+                    return new Ast.Source(fields, parseMethods());
+                }
+                methods.addAll(group);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while parsing.", e);
+        } catch (ExecutionException e) {
+            return new Ast.Source(fields, parseMethods());
+        }
+        // continue past the scanned methods, as a method without an END
+        // still has to be parsed to throw the same exception
+        tokens.index = bounds.get(bounds.size() - 1);
+        methods.addAll(parseMethods());
+        return new Ast.Source(fields, methods);
+    }
+
+    /**
+     * Returns the index of each top level DEF from the current token onwards,
+     * followed by the index after the last one, as described by {@link
+     * #parseSourceParallel(ForkJoinPool)}. Scanning stops at the first token
+     * after a method which is not a DEF, and a final method with no END is
+     * left out.
+     */
+    private List<Integer> methodBounds() {
+        List<Integer> bounds = new ArrayList<>();
+        int complete = 0;
+        int end = tokens.index;
+        int depth = 0;
+        for (int i = 0; tokens.has(i); i++) {
+            Token.Keyword keyword = tokens.getKeyword(i);
+            if (depth == 0) {
+                if (keyword != Token.Keyword.DEF)
+                    break;
+                bounds.add(tokens.index + i);
+            }
+            if (keyword == Token.Keyword.DEF || keyword == Token.Keyword.WHILE || keyword == Token.Keyword.FOR) {
+                depth++;
+            } else if (keyword == Token.Keyword.END && --depth == 0) {
+                complete = bounds.size();
+                end = tokens.index + i + 1;
+            }
+        }
+        bounds = new ArrayList<>(bounds.subList(0, complete));
+        bounds.add(end);
+        return bounds;
+    }
+
+    /**
+     * Parses the methods of the {@code source} rule from the current token.
+     */
+    private List<Ast.Method> parseMethods() throws ParseException {
+        List<Ast.Method> methods = new ArrayList<Ast.Method>();
+        while (match(Token.Keyword.DEF)) {
+            methods.add(parseMethod());
+        }
+        return methods;
+    }
+
+    /**
+     * Parses the methods between consecutive bounds, returning {@code null}
+     * if any of them does not end exactly at the following bound.
+     */
+    private List<Ast.Method> parseMethods(List<Integer> bounds) {
+        List<Ast.Method> methods = new ArrayList<Ast.Method>();
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            tokens.index = bounds.get(i) + 1;
+            methods.add(parseMethod());
+            if (tokens.index != bounds.get(i + 1))
+                return null;
+        }
+        return methods;
+    }
+
+    /**
+     * Parses the {@code source} rule without stopping at the first error. Each
+     * {@link ParseException} is added to {@code errors} and parsing resumes at
+     * the next synchronization point, so that all errors are found in a single
+     * pass and a partial tree is returned.
+     *
+     * A statement which fails is replaced by an {@link Ast.Stmt.Error} node,
+     * skipping past the next {@code ;}, or up to the next {@code END}, {@code
+     * DEF} or {@code LET}. A block which reaches a {@code DEF} or the end of
+     * the input is closed with an error for the missing {@code END}. A field
+     * or method header which fails is left out, skipping to the next field or
+     * method. Unlike {@link #parseSource()}, tokens which do not start a field
+     * or method are reported rather than ending the parse.
+     */
+    public Ast.Source parseSourceRecovering(List<ParseException> errors) {
+        this.errors = errors;
+        try {
+            List<Ast.Field> fields = new ArrayList<Ast.Field>();
+            List<Ast.Method> methods = new ArrayList<Ast.Method>();
+            while (tokens.has(0)) {
+                int start = tokens.index;
+                try {
+                    if (methods.isEmpty() && match(Token.Keyword.LET)) {
+                        fields.add(parseField());
+                    } else if (match(Token.Keyword.DEF)) {
+                        methods.add(parseMethod());
+                    } else {
+                        throw new ParseException("Expected LET or DEF.", tokens.get(0).getIndex(), sourceMap);
+                    }
+                } catch (ParseException e) {
+                    errors.add(e);
+                    if (tokens.index == start)
+                        tokens.advance();
+                    // a method header only synchronizes on the next method
+                    while (tokens.has(0) && !peek(Token.Keyword.DEF) && (!methods.isEmpty() || !peek(Token.Keyword.LET)))
+                        tokens.advance();
+                }
+            }
+            return new Ast.Source(fields, methods);
+        } finally {
+            this.errors = null;
+        }
+    }
+
+    /**
+     * Parses a statement within a block. When recovering, a statement which
+     * fails is replaced by an error node, see {@link
+     * #parseSourceRecovering(List)}.
+     */
+    private Ast.Stmt parseBlockStatement() throws ParseException {
+        int start = tokens.index;
+        if (errors == null)
+            return span(parseStatement(), start);
+
+        try {
+            return span(parseStatement(), start);
+        } catch (ParseException e) {
+            errors.add(e);
+            if (tokens.index == start)
+                tokens.advance();
+            while (tokens.has(0) && !peek(Token.Keyword.END) && !peek(Token.Keyword.DEF) && !peek(Token.Keyword.LET)) {
+                tokens.advance();
+                if (tokens.literalEquals(-1, ";"))
+                    break;
+            }
+            return new Ast.Stmt.Error(e.getMessage(), e.getIndex());
+        }
+    }
+
+    /**
+     * Returns true when recovering if a block has reached the end of the
+     * input or the start of another method, which means its END is missing.
+     */
+    private boolean unterminated() {
+        if (errors == null || tokens.has(0) && !peek(Token.Keyword.DEF))
+            return false;
+
+        int index = tokens.has(0) ? tokens.get(0).getIndex() : tokens.get(-1).getIndex();
+        if (errors.isEmpty() || errors.get(errors.size() - 1).getIndex() != index)
+            errors.add(new ParseException("Expected END.", index, sourceMap));
+        return true;
+    }
+
     /**
      * Parses the {@code field} rule. This method should only be called if the
      * next tokens start a field, aka {@code LET}.
@@ -53,7 +444,7 @@ public final class Parser {
 
         if (!match(Token.Type.IDENTIFIER)) // Check for LET, advance token
         {
-            throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex());
+            throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex(), sourceMap);
         }
 
         String name = tokens.get(-1).getLiteral(); // Set name (index 1)
@@ -62,6 +453,8 @@ public final class Parser {
 
         if (match(":")) // If semicolon is matched, get type
         {
+            if (!tokens.has(0))
+                throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex(), sourceMap);
             type = tokens.get(0).getLiteral();
             //System.out.println("Type: " + type);
             tokens.advance(); // Advance to index 4
@@ -76,7 +469,7 @@ public final class Parser {
 
         if (!match(";"))
         {
-            throw new ParseException("Expected semicolon.", tokens.get(-1).getIndex());
+            throw new ParseException("Expected semicolon.", tokens.get(-1).getIndex(), sourceMap);
         }
 
         return new Ast.Field(name, type, value);
@@ -99,25 +492,25 @@ public final class Parser {
         List<Ast.Stmt> statements = new ArrayList<Ast.Stmt>();
 
         // 1. check type, get the method's name
-        if (!match(Token.Type.IDENTIFIER)) throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex()); // match id type, throw exception if not
+        if (!match(Token.Type.IDENTIFIER)) throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex(), sourceMap); // match id type, throw exception if not
         name = tokens.get(-1).getLiteral();
 
         // 2. check (), loop to get parameter
-        if( !match ("(")) throw new ParseException("Expected parenthesis.", tokens.get(-1).getIndex());// match (, loop through list of ids
+        if( !match ("(")) throw new ParseException("Expected parenthesis.", tokens.get(-1).getIndex(), sourceMap);// match (, loop through list of ids
 
         while (!match(")")){ // escape loop when detect )
 
             // 2a.Check type, Get parameter as a string
-            if (tokens.get(-1).getType()!=Token.Type.IDENTIFIER) throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex());
+            if (tokens.get(-1).getType()!=Token.Type.IDENTIFIER) throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex(), sourceMap);
             parameters.add(tokens.get(-1).getLiteral());
 
             if (!peek(")")) {
 
                 if (!match(",")) // Looks for comma next
-                    throw new ParseException("Expected comma.", tokens.get(-1).getIndex());
+                    throw new ParseException("Expected comma.", tokens.get(-1).getIndex(), sourceMap);
                 // check trailing comma
                 if (match(")"))
-                    throw new ParseException("Trailing comma, expected expression", tokens.get(-1).getIndex());
+                    throw new ParseException("Trailing comma, expected expression", tokens.get(-1).getIndex(), sourceMap);
 
             }
         }
@@ -125,16 +518,18 @@ public final class Parser {
         if (peek(":"))
         {
             match(":");
+            if (!tokens.has(0))
+                throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex(), sourceMap);
             typeName = Optional.of(tokens.get(0).getLiteral());
             tokens.advance(); // Advance to next token
         }
 
         // 4. check keyword DO
-        if (!match("DO")) throw new ParseException("Expected keyword DO", tokens.get(-1).getIndex());
+        if (!match(Token.Keyword.DO)) throw new ParseException("Expected keyword DO", tokens.get(-1).getIndex(), sourceMap);
 
         // 5. Statement list (0 or more)
-        while (!match("END")) // Loop until 'END' is reached
-            statements.add(parseStatement()); // add statement to "then" statement list
+        while (!match(Token.Keyword.END) && !unterminated()) // Loop until 'END' is reached
+            statements.add(parseBlockStatement()); // add statement to "then" statement list
 
         return new Ast.Method(name, parameters, parameterTypeNames, typeName, statements);
     }
@@ -147,24 +542,24 @@ public final class Parser {
      */
     public Ast.Stmt parseStatement() throws ParseException
     {
-        if (peek("LET"))
+        if (peek(Token.Keyword.LET))
         {
             // 'LET' identifier ('=' expression)? ';'
             return parseDeclarationStatement();
         }
-        else if (peek("IF"))
+        else if (peek(Token.Keyword.IF))
         {
             return parseIfStatement();
         }
-        else if (peek("FOR"))
+        else if (peek(Token.Keyword.FOR))
         {
             return parseForStatement();
         }
-        else if (peek("WHILE"))
+        else if (peek(Token.Keyword.WHILE))
         {
             return parseWhileStatement();
         }
-        else if (peek("RETURN"))
+        else if (peek(Token.Keyword.RETURN))
         {
             return parseReturnStatement();
         }
@@ -176,7 +571,7 @@ public final class Parser {
             {
                 // if no second expression before ;, throw exception
                 if (peek(";"))
-                    throw new ParseException("Expected expression after = operator.", tokens.get(-1).getIndex());
+                    throw new ParseException("Expected expression after = operator.", tokens.get(-1).getIndex(), sourceMap);
                 else
                 {
                     return new Ast.Stmt.Assignment(expr, parseExpression()); // returns assignment statement
@@ -185,15 +580,15 @@ public final class Parser {
             else if (match("(")) {
 
                 if  (!peek(")"))
-                    throw new ParseException("Expected closing parenthesis.", tokens.get(-1).getIndex());
+                    throw new ParseException("Expected closing parenthesis.", tokens.get(-1).getIndex(), sourceMap);
                 match(")");
                 if (!peek(";")) {
-                    throw new ParseException("Expected semicolon.", tokens.get(-1).getIndex());
+                    throw new ParseException("Expected semicolon.", tokens.get(-1).getIndex(), sourceMap);
                 }
             }
             if (!match(";"))
             {
-                throw new ParseException("Expected semicolon.", tokens.get(-1).getIndex());
+                throw new ParseException("Expected semicolon.", tokens.get(-1).getIndex(), sourceMap);
             }
 
             return new Ast.Stmt.Expression(expr); // returns single expression
@@ -207,11 +602,11 @@ public final class Parser {
      */
     public Ast.Stmt.Declaration parseDeclarationStatement() throws ParseException {
 
-        match("LET");
+        match(Token.Keyword.LET);
 
         if (!match(Token.Type.IDENTIFIER))
         {
-            throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex());
+            throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex(), sourceMap);
         }
 
         String name = tokens.get(-1).getLiteral();
@@ -227,6 +622,8 @@ public final class Parser {
         else if (peek(":"))
         {
             match(":");
+            if (!tokens.has(0))
+                throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex(), sourceMap);
             tokens.index++;
             type = Optional.of(tokens.get(-1).getLiteral());
             //System.out.println("Type: " + type);
@@ -234,7 +631,7 @@ public final class Parser {
 
         if (!peek(";"))
         {
-            throw new ParseException("Expected semicolon.", tokens.get(-1).getIndex());
+            throw new ParseException("Expected semicolon.", tokens.get(-1).getIndex(), sourceMap);
         }
         match(";");
 
@@ -251,25 +648,25 @@ public final class Parser {
         List<Ast.Stmt> thenStatements = new ArrayList<Ast.Stmt>(); // Creates list of "then" statements
         List<Ast.Stmt> elseStatements = new ArrayList<Ast.Stmt>(); // Creates list of "else" statements
 
-        match("IF"); // Consumes 'IF' token
+        match(Token.Keyword.IF); // Consumes 'IF' token
 
         Ast.Expr expr = parseExpression();
-        if (!peek("DO"))
-            throw new ParseException("Expected 'DO' after expression.", tokens.get(-1).getIndex());
+        if (!peek(Token.Keyword.DO))
+            throw new ParseException("Expected 'DO' after expression.", tokens.get(-1).getIndex(), sourceMap);
         else
         {
-            match("DO"); // Consumes 'DO' token
+            match(Token.Keyword.DO); // Consumes 'DO' token
 
-            while (!peek("END") && (!peek("ELSE"))) // if 'END' and 'ELSE' don't come after 'DO' token
+            while (!peek(Token.Keyword.END) && (!peek(Token.Keyword.ELSE)) && !unterminated()) // if 'END' and 'ELSE' don't come after 'DO' token
             {
-                Ast.Stmt stmt = parseStatement(); // get statement
+                Ast.Stmt stmt = parseBlockStatement(); // get statement
                 thenStatements.add(stmt); // add statement to "then" statement list
             }
 
-            while (match("ELSE")) // Loops while there are ELSE statements available
+            while (match(Token.Keyword.ELSE)) // Loops while there are ELSE statements available
             {
 
-                Ast.Stmt stmt2 = parseStatement();
+                Ast.Stmt stmt2 = parseBlockStatement();
                 elseStatements.add(stmt2);
             }
         }
@@ -285,29 +682,29 @@ public final class Parser {
     public Ast.Stmt.For parseForStatement() throws ParseException {
         List<Ast.Stmt> statements = new ArrayList<Ast.Stmt>();
 
-        match("FOR");
+        match(Token.Keyword.FOR);
 
         if (!match(Token.Type.IDENTIFIER))
         {
-            throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex());
+            throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex(), sourceMap);
         }
 
         String name = tokens.get(-1).getLiteral();
 
-        if (!peek("IN"))
-            throw new ParseException("Expected 'IN' after identifier.", tokens.get(-1).getIndex());
+        if (!peek(Token.Keyword.IN))
+            throw new ParseException("Expected 'IN' after identifier.", tokens.get(-1).getIndex(), sourceMap);
 
-        match("IN"); // Consumes 'IN' token
+        match(Token.Keyword.IN); // Consumes 'IN' token
         Ast.Expr expr = parseExpression();
 
-        if (!peek("DO"))
-            throw new ParseException("Expected 'DO' after expression.", tokens.get(-1).getIndex());
+        if (!peek(Token.Keyword.DO))
+            throw new ParseException("Expected 'DO' after expression.", tokens.get(-1).getIndex(), sourceMap);
         else {
-            match("DO"); // Consumes 'DO' token
+            match(Token.Keyword.DO); // Consumes 'DO' token
 
-            while (!match("END")) // Loop until 'END' is reached
+            while (!match(Token.Keyword.END) && !unterminated()) // Loop until 'END' is reached
             {
-                Ast.Stmt stmt = parseStatement(); // get statement
+                Ast.Stmt stmt = parseBlockStatement(); // get statement
                 statements.add(stmt); // add statement to "then" statement list
             }
         }
@@ -324,17 +721,17 @@ public final class Parser {
 
         List<Ast.Stmt> statements = new ArrayList<Ast.Stmt>();
 
-        match("WHILE");
+        match(Token.Keyword.WHILE);
         Ast.Expr expr = parseExpression();
 
-        if (!peek("DO"))
-            throw new ParseException("Expected 'DO' after expression.", tokens.get(-1).getIndex());
+        if (!peek(Token.Keyword.DO))
+            throw new ParseException("Expected 'DO' after expression.", tokens.get(-1).getIndex(), sourceMap);
         else {
-            match("DO"); // Consumes 'DO' token
+            match(Token.Keyword.DO); // Consumes 'DO' token
 
-            while (!match("END")) // Loop until 'END' is reached
+            while (!match(Token.Keyword.END) && !unterminated()) // Loop until 'END' is reached
             {
-                Ast.Stmt stmt = parseStatement(); // get statement
+                Ast.Stmt stmt = parseBlockStatement(); // get statement
                 statements.add(stmt); // add statement to "then" statement list
                 if (peek(";"))
                 {
@@ -352,11 +749,11 @@ public final class Parser {
      * {@code RETURN}.
      */
     public Ast.Stmt.Return parseReturnStatement() throws ParseException {
-        match("RETURN"); // Consumes 'RETURN' token
+        match(Token.Keyword.RETURN); // Consumes 'RETURN' token
         Ast.Expr expr = parseExpression(); // Parses expression
 
         if (!peek(";"))
-            throw new ParseException("Expected semicolon after expression.", tokens.get(-1).getIndex());
+            throw new ParseException("Expected semicolon after expression.", tokens.get(-1).getIndex(), sourceMap);
         else
             match(";"); // Consumes ';' token
 
@@ -368,89 +765,164 @@ public final class Parser {
      */
     public Ast.Expr parseExpression() throws ParseException {
 
-        return parseLogicalExpression();
+        return parseBinaryExpression(LOGICAL);
     }
 
     /**
      * Parses the {@code logical-expression} rule.
      */
     public Ast.Expr parseLogicalExpression() throws ParseException {
-        Ast.Expr expr = parseEqualityExpression();
-
-        while (match("AND") || match("OR"))
-        {
-            String operator = tokens.get(-1).getLiteral();
-            Ast.Expr rightOperand = parseEqualityExpression();
-
-            expr = new Ast.Expr.Binary(operator, expr, rightOperand);
-        }
-
-        return expr;
+        return parseBinaryExpression(LOGICAL);
     }
 
     /**
      * Parses the {@code equality-expression} rule.
      */
     public Ast.Expr parseEqualityExpression() throws ParseException {
-        //throw new UnsupportedOperationException(); //TODO
-        Ast.Expr expr = parseAdditiveExpression();
-
-        while (match("<") || match("<=") || match(">") || match(">=")
-                || match("==") || match("!="))
-        {
-            String operator = tokens.get(-1).getLiteral();
-            Ast.Expr rightOperand = parseAdditiveExpression();
-
-            expr = new Ast.Expr.Binary(operator, expr, rightOperand);
-        }
-
-        return expr;
+        return parseBinaryExpression(EQUALITY);
     }
 
     /**
      * Parses the {@code additive-expression} rule.
      */
     public Ast.Expr parseAdditiveExpression() throws ParseException {
-        //throw new UnsupportedOperationException(); //TODO
-        // Builds and returns an Ast.Expr
-        // Begins by parsing left operand
+        return parseBinaryExpression(ADDITIVE);
+    }
 
-        // While continuing to match on + or -,
-        // Store the operator
-        // Evaluate the right operand (another multiplicative-expression)
-        // Build the binary expression from the operator, left operand, and right operand
-        // expression = new Ast.Expr.Binary(operator, expression, right)
+    /**
+     * Parses the {@code multiplicative-expression} rule.
+     */
+    public Ast.Expr parseMultiplicativeExpression() throws ParseException {
+        return parseBinaryExpression(MULTIPLICATIVE);
+    }
 
-        // Returns expression after the loop completes
-        Ast.Expr expr = parseMultiplicativeExpression();
+    /**
+     * Parses a chain of binary operators binding at least as tightly as
+     * {@code precedence}, by precedence climbing. The right operand of each
+     * operator only takes operators binding more tightly than it, so that
+     * operators are left associative. This produces the same trees as one
+     * rule per precedence level, but an operand is parsed with a single table
+     * lookup per following token rather than a call and several comparisons
+     * per level.
+     */
+    private Ast.Expr parseBinaryExpression(int precedence) throws ParseException {
+        if (iterative)
+            return parseExpressionIteratively(precedence);
 
-        while (match("+") || match("-"))
+        Ast.Expr expr = parseSecondaryExpression();
+
+        Operator operator;
+        while ((operator = operator()) != null && operator.precedence >= precedence)
         {
-            String operator = tokens.get(-1).getLiteral();
-            Ast.Expr rightOperand = parseMultiplicativeExpression();
+            tokens.advance();
+            Ast.Expr rightOperand = parseBinaryExpression(operator.precedence + 1);
 
-            expr = new Ast.Expr.Binary(operator, expr, rightOperand);
+            expr = span(factory.binary(operator.literal, expr, rightOperand), spanStart(expr));
         }
 
         return expr;
     }
 
     /**
-     * Parses the {@code multiplicative-expression} rule.
+     * Parses as {@link #parseBinaryExpression(int)}, but keeps the pending
+     * rules on an explicit stack of frames. A {@code BINARY} frame holds the
+     * left operand and pending operator of a chain of binary operators, and a
+     * {@code GROUP} or {@code CALL} frame an open group or argument list.
+     * Wherever the recursive parser would call {@link #parseExpression()} for
+     * a nested expression, a frame is pushed instead, and it is popped once
+     * that expression ends. Tokens are consumed and errors are thrown in the
+     * same order as when parsing recursively.
      */
-    public Ast.Expr parseMultiplicativeExpression() throws ParseException {
-
-        Ast.Expr expr = parseSecondaryExpression();
+    private Ast.Expr parseExpressionIteratively(int precedence) throws ParseException {
+        Deque<Frame> frames = new ArrayDeque<>();
+        frames.push(new Frame(BINARY, precedence));
+        Ast.Expr expr = null;
+        boolean operand = false;
 
-        while (match("*") || match("/"))
+        while (true)
         {
-            String operator = tokens.get(-1).getLiteral();
-            Ast.Expr rightOperand = parseSecondaryExpression();
+            if (expr == null) // a frame was opened, so an operand starts here
+            {
+                int start = tokens.index;
+                expr = span(parsePrimaryExpression(frames), start);
+                continue;
+            }
+            if (!operand)
+            {
+                expr = parseSuffixes(expr, frames);
+                operand = expr != null;
+                continue;
+            }
+
+            Frame binary = frames.peek();
+            binary.expr = binary.operator == null ? expr : span(factory.binary(binary.operator.literal, binary.expr, expr), spanStart(binary.expr));
 
-            expr = new Ast.Expr.Binary(operator, expr, rightOperand);
+            Operator operator = operator();
+            if (operator != null && operator.precedence >= binary.precedence)
+            {
+                tokens.advance();
+                binary.operator = operator;
+                frames.push(new Frame(BINARY, operator.precedence + 1));
+                expr = null;
+                operand = false;
+                continue;
+            }
+
+            frames.pop();
+            expr = binary.expr;
+            if (frames.isEmpty())
+                return expr;
+
+            // the expression is the right operand of the frame below, or ends a group or argument
+            Frame frame = frames.peek();
+            if (frame.kind == GROUP)
+            {
+                frames.pop();
+                expr = span(parseGroupEnd(expr), frame.start);
+                operand = false;
+            }
+            else if (frame.kind == CALL)
+            {
+                frame.arguments.add(expr);
+                parseArgumentSeparator();
+                if (match(")"))
+                {
+                    frames.pop();
+                    expr = span(factory.function(Optional.ofNullable(frame.expr), frame.name, frame.arguments), frame.start);
+                }
+                else
+                {
+                    frames.push(new Frame(BINARY, LOGICAL));
+                    expr = null;
+                }
+                operand = false;
+            }
         }
+    }
 
-        return expr;
+    /**
+     * Returns the binary operator of the next token, or {@code null} if there
+     * is none. Operators spelled as keywords are looked up by keyword, and
+     * others by literal regardless of the token's type, since the lexer emits
+     * a lone {@code +} or {@code -} as an integer.
+     */
+    private Operator operator() {
+        if (!tokens.has(0))
+            return null;
+
+        Token.Keyword keyword = tokens.getKeyword(0);
+        if (keyword != null)
+            return KEYWORD_OPERATORS[keyword.ordinal()];
+
+        int length = tokens.getLength(0);
+        char first = length > 0 ? tokens.charAt(0, 0) : 0;
+        if (first >= CHAR_OPERATORS.length)
+            return null;
+        else if (length == 1)
+            return CHAR_OPERATORS[first];
+        else if (length <= LONGEST_OPERATOR && OPERATOR_STARTS[first])
+            return LITERAL_OPERATORS.get(tokens.get(0).getLiteral());
+        return null;
     }
 
     /**
@@ -458,47 +930,119 @@ public final class Parser {
      */
     public Ast.Expr parseSecondaryExpression() throws ParseException {
 
-        Ast.Expr secondary = parsePrimaryExpression(); // Gets first primary expression
+        int start = tokens.index;
+        return parseSuffixes(span(parsePrimaryExpression(), start), null); // Gets first primary expression
+    }
+
+    /**
+     * Parses the field accesses and method calls following a primary
+     * expression. When parsing iteratively, a method call with arguments
+     * pushes a {@code CALL} frame and its first argument on {@code frames},
+     * and returns {@code null}.
+     */
+    private Ast.Expr parseSuffixes(Ast.Expr secondary, Deque<Frame> frames) throws ParseException {
         while (match(".")) // loops if "." is found
         {
+            if (!tokens.has(0))
+                throw new ParseException("Expected Identifier.", tokens.get(-1).getIndex(), sourceMap);
             String identifier = tokens.get(0).getLiteral(); // gets identifier after "."
             boolean bool = identifier.matches("[0-9].*");
             // If first character of field is an integer, throw a ParseException
             if (bool)
             {
-                throw new ParseException("Field can't start with a digit.", tokens.get(-1).getIndex());
+                throw new ParseException("Field can't start with a digit.", tokens.get(-1).getIndex(), sourceMap);
             }
 
             match(Token.Type.IDENTIFIER);
             List<Ast.Expr> expressions = new ArrayList<Ast.Expr>(); // Creates list of expressions
             if (match("(")) // if opening parenthesis is found
             {
+                if (frames != null && !peek(")"))
+                {
+                    frames.push(new Frame(spanStart(secondary), secondary, identifier, expressions));
+                    frames.push(new Frame(BINARY, LOGICAL));
+                    return null;
+                }
+
                 while (!match(")")) // While closing parenthesis is not found
                 {
                     Ast.Expr expr = parseExpression(); // Parse expression
                     expressions.add(expr); // Then add expression to list
-                    if (!peek(")")) // If next char is not closing paranthesis
-                    {
-                        if(!match(",")) // Looks for comma next
-                            throw new ParseException("Expected comma.", tokens.get(-1).getIndex());
-                        else
-                        {
-                            if(match(")")) // Looks for final closing parenthesis
-                                throw new ParseException("Trailing comma, expected expression", tokens.get(-1).getIndex());
-                        }
-                    }
+                    parseArgumentSeparator();
                 }
 
-                secondary = new Ast.Expr.Function(Optional.of(secondary), identifier, expressions); // Function call
+                secondary = span(factory.function(Optional.of(secondary), identifier, expressions), spanStart(secondary)); // Function call
             }
 
             else
-                secondary = new Ast.Expr.Access(Optional.of(secondary), identifier); // Field call
+                secondary = span(factory.access(Optional.of(secondary), identifier), spanStart(secondary)); // Field call
         }
 
         return secondary; // Returns field or function
     }
 
+    /**
+     * Parses what follows an argument, which is either the closing
+     * parenthesis, left for the caller to match, or a comma and another
+     * argument.
+     */
+    private void parseArgumentSeparator() throws ParseException {
+        if (!peek(")")) // If next char is not closing paranthesis
+        {
+            if (!match(",")) // Looks for comma next
+                throw new ParseException("Expected comma.", tokens.get(-1).getIndex(), sourceMap);
+            else if (match(")")) // Looks for final closing parenthesis
+                throw new ParseException("Trailing comma, expected expression", tokens.get(-1).getIndex(), sourceMap);
+        }
+    }
+
+    /**
+     * Returns the literal of a numeric token which the lexer could not decode,
+     * which is either too long for a {@code long} or, as the lexer emits a
+     * lone {@code +} or {@code -} as an integer, has no digits.
+     */
+    private String literal(Token token) throws ParseException {
+        String literal = token.getLiteral();
+        for (int i = 0; i < literal.length(); i++) {
+            if (Character.isDigit(literal.charAt(i)))
+                return literal;
+        }
+        throw new ParseException("Invalid primary expression.", token.getIndex(), sourceMap);
+    }
+
+    /**
+     * Returns the value of a string or character literal, without its quotes
+     * and with its escapes replaced in a single pass over a reused buffer.
+     */
+    private String decode(Token token) {
+        String literal = token.getLiteral();
+        int end = literal.length() - 1;
+        if (literal.indexOf('\\') < 0)
+            return literal.substring(1, end);
+
+        if (decoded.length < end)
+            decoded = new char[Math.max(end, 64)];
+        int length = 0;
+        for (int i = 1; i < end; i++) {
+            char c = literal.charAt(i);
+            if (c == '\\') {
+                switch (i + 1 < end ? literal.charAt(++i) : 0) {
+                    case 'b': c = '\b'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case '\'': c = '\''; break;
+                    case '"': c = '"'; break;
+                    case '\\': c = '\\'; break;
+                    default:
+                        throw new ParseException("Invalid escape sequence.", token.getIndex() + i, sourceMap);
+                }
+            }
+            decoded[length++] = c;
+        }
+        return new String(decoded, 0, length);
+    }
+
     /**
      * Parses the {@code primary-expression} rule. This is the top-level rule
      * for expressions and includes literal values, grouping, variables, and
@@ -506,43 +1050,53 @@ public final class Parser {
      * not strictly necessary.
      */
     public Ast.Expr parsePrimaryExpression() throws ParseException {
-        if (match("TRUE")) {
-            return new Ast.Expr.Literal(true);
-        } else if (match("FALSE")) {
-            return new Ast.Expr.Literal(false);
-        } else if (match("NIL")) {
-            return new Ast.Expr.Literal(null);
+        return parsePrimaryExpression(null);
+    }
+
+    /**
+     * Parses a primary expression. When parsing iteratively, a group or a
+     * function call with arguments pushes a {@code GROUP} or {@code CALL}
+     * frame and the frame of its first expression on {@code frames}, and
+     * returns {@code null}.
+     */
+    private Ast.Expr parsePrimaryExpression(Deque<Frame> frames) throws ParseException {
+        int start = tokens.index;
+        if (match(Token.Keyword.TRUE)) {
+            return factory.literal(true);
+        } else if (match(Token.Keyword.FALSE)) {
+            return factory.literal(false);
+        } else if (match(Token.Keyword.NIL)) {
+            return factory.literal(null);
         } else if (match(Token.Type.INTEGER)) {
-            //BigInteger temp = BigInteger.valueOf(Integer.parseInt(tokens.get(-1).getLiteral()));
-            //return new Ast.Expr.Literal(temp);
-            return new Ast.Expr.Literal(new BigInteger(tokens.get(-1).getLiteral()));
+            // the lexer decodes literals which fit in a long
+            Token token = tokens.get(-1);
+            BigInteger value = integers.get(token.getLiteral());
+            if (value == null) {
+                value = token.hasValue() ? BigInteger.valueOf(token.getUnscaledValue()) : new BigInteger(literal(token));
+                integers.put(token.getLiteral(), value);
+            }
+            return factory.literal(value);
         } else if (match(Token.Type.DECIMAL)) {
-            return new Ast.Expr.Literal(new BigDecimal(tokens.get(-1).getLiteral()));
+            Token token = tokens.get(-1);
+            BigDecimal value = decimals.get(token.getLiteral());
+            if (value == null) {
+                value = token.hasValue() ? BigDecimal.valueOf(token.getUnscaledValue(), token.getScale()) : new BigDecimal(literal(token));
+                decimals.put(token.getLiteral(), value);
+            }
+            return factory.literal(value);
         }
         else if (match(Token.Type.STRING))
         {
-            String temp = tokens.get(-1).getLiteral();
-            String newString = temp.substring(1, temp.length() - 1);
-            newString = newString.replaceAll("\\\\n","\\\n");
-            newString = newString.replaceAll("\\\\b","\\\b");
-            newString = newString.replaceAll("\\\\r","\\\r");
-            newString = newString.replaceAll("\\\\t","\\\t");
-            newString = newString.replaceAll("\\\\'", "\\\'");
-            newString = newString.replaceAll("\\\\\"", "\\\"");
-            newString = newString.replaceAll("\\\\", "\\");
-            return new Ast.Expr.Literal(newString);
+            Token token = tokens.get(-1);
+            String value = strings.get(token.getLiteral());
+            if (value == null) {
+                value = decode(token);
+                strings.put(token.getLiteral(), value);
+            }
+            return factory.literal(value);
         } else if (match(Token.Type.CHARACTER))
         {
-            String temp = tokens.get(-1).getLiteral();
-            String newChar = temp.substring(1, temp.length() - 1);
-            newChar = newChar.replaceAll("\\\\n","\\\n");
-            newChar = newChar.replaceAll("\\\\b","\\\b");
-            newChar = newChar.replaceAll("\\\\r","\\\r");
-            newChar = newChar.replaceAll("\\\\t","\\\t");
-            newChar = newChar.replaceAll("\\\\'", "\\\'");
-            newChar = newChar.replaceAll("\\\\\"", "\\\"");
-            newChar = newChar.replaceAll("\\\\", "\\");
-            return new Ast.Expr.Literal(newChar.charAt(0));
+            return factory.literal(decode(tokens.get(-1)).charAt(0));
         }
         else if (match(Token.Type.IDENTIFIER))
         {
@@ -553,44 +1107,43 @@ public final class Parser {
                 if (peek(")"))
                 {
                     tokens.index--;
-                    return new Ast.Expr.Function(Optional.empty(), name, expressions);
+                    return factory.function(Optional.empty(), name, expressions);
+                }
+                if (frames != null)
+                {
+                    frames.push(new Frame(start, null, name, expressions));
+                    frames.push(new Frame(BINARY, LOGICAL));
+                    return null;
                 }
 
                 while (!match(")")) // While closing parenthesis is not found
                 {
                     Ast.Expr expr = parseExpression(); // Parse expression
                     expressions.add(expr); // Then add expression to list
-                    if (!peek(")")) // If next char is not closing paranthesis
-                    {
-                        if (!match(",")) // Looks for comma next
-                            throw new ParseException("Expected comma.", tokens.get(-1).getIndex());
-                        else {
-                            if (match(")")) // Looks for final closing parenthesis
-                                throw new ParseException("Trailing comma, expected expression", tokens.get(-1).getIndex());
-                        }
-                    }
+                    parseArgumentSeparator();
                 }
 
-                return new Ast.Expr.Function(Optional.empty(), name, expressions); // Function call
+                return factory.function(Optional.empty(), name, expressions); // Function call
             }
 
-            return new Ast.Expr.Access(Optional.empty(), name);
+            return factory.access(Optional.empty(), name);
         }
 
         else if (match("(")) // "(expression) case
         {
-            Ast.Expr expr = parseExpression();
-            if (!match(")"))
+            if (frames != null)
             {
-                throw new ParseException("Expected closing parenthesis.", tokens.get(0).getIndex());
+                frames.push(new Frame(GROUP, start));
+                frames.push(new Frame(BINARY, LOGICAL));
+                return null;
             }
-            return new Ast.Expr.Group(expr);
+            return parseGroupEnd(parseExpression());
         }
 
 
         else
         {
-            throw new ParseException("Invalid primary expression.", tokens.get(-1).getIndex());
+            throw new ParseException("Invalid primary expression.", tokens.get(-1).getIndex(), sourceMap);
 
         }
 
@@ -599,6 +1152,38 @@ public final class Parser {
     }
 
 
+    /**
+     * Records the token span of a node when parsing into a {@link FlatAst},
+     * from {@code start} to the current token.
+     */
+    private <T extends Ast> T span(T ast, int start) {
+        if (spans != null && ast != null)
+            spans.put(ast, span(start));
+        return ast;
+    }
+
+    private long span(int start) {
+        return (long) start << 32 | tokens.index;
+    }
+
+    /**
+     * Returns the first token of a node whose span has been recorded.
+     */
+    private int spanStart(Ast ast) {
+        return spans == null ? -1 : (int) (spans.getOrDefault(ast, -1L) >> 32);
+    }
+
+    /**
+     * Matches the closing parenthesis of a group around {@code expr}.
+     */
+    private Ast.Expr.Group parseGroupEnd(Ast.Expr expr) throws ParseException {
+        if (!match(")"))
+        {
+            throw new ParseException("Expected closing parenthesis.", tokens.get(tokens.has(0) ? 0 : -1).getIndex(), sourceMap);
+        }
+        return factory.group(expr);
+    }
+
     /**
      * As in the lexer, returns {@code true} if the current sequence of tokens
      * matches the given patterns. Unlike the lexer, the pattern is not a regex;
@@ -607,45 +1192,58 @@ public final class Parser {
      * literal is the same.
      *
      * In other words, {@code Token(IDENTIFIER, "literal")} is matched by both
-     * {@code peek(Token.Type.IDENTIFIER)} and {@code peek("literal")}.
+     * {@code peek(Token.Type.IDENTIFIER)} and {@code peek("literal")}. Keywords
+     * are matched by their {@link Token.Keyword}, which is an identity
+     * comparison rather than a string comparison.
      */
     private boolean peek(Object... patterns) {
         for (int i = 0; i < patterns.length; i++)
         {
-            if (!tokens.has(i))
+            if (!peek(i, patterns[i]))
             {
                 return false;
             }
-            else if (patterns[i] instanceof Token.Type)
-            {
-                if (patterns[i] != tokens.get(i).getType())
-                {
-                    return false;
-                }
-            }
-            else if (patterns[i] instanceof String)
-            {
-                if (!patterns[i].equals(tokens.get(i).getLiteral()))
-                {
-                    return false;
-                }
-            }
-            else
-            {
-                throw new AssertionError("Invalid pattern object: " +
-                        patterns[i].getClass());
-            }
         }
         return true;
     }
 
+    /**
+     * Single pattern form of {@link #peek(Object...)}, which avoids allocating
+     * the varargs array for the common case.
+     */
+    private boolean peek(Object pattern) {
+        return peek(0, pattern);
+    }
+
+    private boolean peek(int offset, Object pattern) {
+        if (!tokens.has(offset))
+        {
+            return false;
+        }
+        else if (pattern instanceof Token.Keyword)
+        {
+            return pattern == tokens.getKeyword(offset);
+        }
+        else if (pattern instanceof Token.Type)
+        {
+            return pattern == tokens.getType(offset);
+        }
+        else if (pattern instanceof String)
+        {
+            return tokens.literalEquals(offset, (String) pattern);
+        }
+        else
+        {
+            throw new AssertionError("Invalid pattern object: " +
+                    pattern.getClass());
+        }
+    }
+
     /**
      * As in the lexer, returns {@code true} if {@link #peek(Object...)} is true
      * and advances the token stream.
      */
     private boolean match(Object... patterns) {
-        //throw new UnsupportedOperationException(); //TODO (in lecture)
-
         boolean peek = peek(patterns);
 
         if (peek)
@@ -658,27 +1256,210 @@ public final class Parser {
         return peek;
     }
 
+    /**
+     * Single pattern form of {@link #match(Object...)}.
+     */
+    private boolean match(Object pattern) {
+        boolean peek = peek(0, pattern);
+
+        if (peek)
+        {
+            tokens.advance();
+        }
+        return peek;
+    }
+
+    /**
+     * Registers a left associative binary operator. Higher precedences bind
+     * more tightly, and operators spelled as a keyword match that keyword.
+     */
+    private static void register(String literal, int precedence) {
+        Operator operator = new Operator(literal, precedence);
+        Token.Keyword keyword = Token.Keyword.of(literal, 0, literal.length());
+        if (keyword != null) {
+            KEYWORD_OPERATORS[keyword.ordinal()] = operator;
+        } else if (literal.length() == 1 && literal.charAt(0) < CHAR_OPERATORS.length) {
+            CHAR_OPERATORS[literal.charAt(0)] = operator;
+        } else {
+            LITERAL_OPERATORS.put(literal, operator);
+            OPERATOR_STARTS[literal.charAt(0)] = true;
+            LONGEST_OPERATOR = Math.max(LONGEST_OPERATOR, literal.length());
+        }
+    }
+
+    private static final class Operator {
+
+        private final String literal;
+        private final int precedence;
+
+        private Operator(String literal, int precedence) {
+            this.literal = literal;
+            this.precedence = precedence;
+        }
+
+    }
+
+    /**
+     * A pending rule of {@link #parseExpressionIteratively(int)}.
+     */
+    private static final class Frame {
+
+        private final int kind;
+        private final int precedence;
+        private final int start; // the first token of a group or call
+        private final String name;
+        private final List<Ast.Expr> arguments;
+        private Operator operator;
+        private Ast.Expr expr; // the left operand, or the receiver of a call
+
+        /**
+         * Creates a {@code BINARY} frame with the given precedence, or a
+         * {@code GROUP} frame starting at the given token.
+         */
+        private Frame(int kind, int value) {
+            this(kind, kind == BINARY ? value : 0, kind == BINARY ? -1 : value, null, null, null);
+        }
+
+        private Frame(int start, Ast.Expr receiver, String name, List<Ast.Expr> arguments) {
+            this(CALL, 0, start, receiver, name, arguments);
+        }
+
+        private Frame(int kind, int precedence, int start, Ast.Expr expr, String name, List<Ast.Expr> arguments) {
+            this.kind = kind;
+            this.precedence = precedence;
+            this.start = start;
+            this.expr = expr;
+            this.name = name;
+            this.arguments = arguments;
+        }
+
+    }
+
+    /**
+     * Provides the parser with tokens, either from a list, from a {@link
+     * TokenBuffer}, or by pulling them from a {@link TokenSource} into a ring
+     * buffer. The ring buffer keeps the most recent tokens so that a few
+     * previous tokens (such as the {@code get(-1)} used for error messages)
+     * remain available.
+     */
     private static final class TokenStream {
 
-        private final List<Token> tokens;
+        private static final int WINDOW_SIZE = 16;
+
+        private List<Token> tokens;
+        private TokenBuffer buffer;
+        private TokenSource source;
+        private Token[] window;
+        private int size = 0;
         private int index = 0;
 
         private TokenStream(List<Token> tokens) {
             this.tokens = tokens;
+            this.buffer = null;
+            this.source = null;
+            this.window = null;
+        }
+
+        private TokenStream(TokenBuffer buffer) {
+            this.tokens = null;
+            this.buffer = buffer;
+            this.source = null;
+            this.window = null;
+        }
+
+        private TokenStream(TokenSource source) {
+            this.tokens = null;
+            this.buffer = null;
+            this.source = source;
+            this.window = new Token[WINDOW_SIZE];
+        }
+
+        private void reset(List<Token> tokens) {
+            this.tokens = tokens;
+            this.buffer = null;
+            this.source = null;
+            this.size = 0;
+            this.index = 0;
         }
 
         /**
          * Returns true if there is a token at index + offset.
          */
         public boolean has(int offset) {
-            return index + offset < tokens.size();
+            if (tokens != null)
+                return index + offset < tokens.size();
+            else if (buffer != null)
+                return index + offset < buffer.size();
+
+            while (size <= index + offset) {
+                Token token = source.next();
+                if (token == null)
+                    return false;
+                window[size++ % WINDOW_SIZE] = token;
+            }
+            return true;
         }
 
         /**
          * Gets the token at index + offset.
          */
         public Token get(int offset) {
-            return tokens.get(index + offset);
+            if (tokens != null)
+                return tokens.get(index + offset);
+            else if (buffer != null)
+                return buffer.get(index + offset);
+
+            int position = index + offset;
+            if (position < 0 || position <= size - WINDOW_SIZE || !has(offset))
+                throw new IndexOutOfBoundsException("Token " + position + " is not buffered.");
+            return window[position % WINDOW_SIZE];
+        }
+
+        /**
+         * Gets the type of the token at index + offset.
+         */
+        public Token.Type getType(int offset) {
+            if (buffer != null)
+                return buffer.getType(index + offset);
+            return get(offset).getType();
+        }
+
+        /**
+         * Gets the keyword of the token at index + offset, if any.
+         */
+        public Token.Keyword getKeyword(int offset) {
+            if (buffer != null)
+                return buffer.getKeyword(index + offset);
+            return get(offset).getKeyword();
+        }
+
+        /**
+         * Returns true if the literal of the token at index + offset is equal
+         * to the given string, without slicing it from a token buffer.
+         */
+        public boolean literalEquals(int offset, String literal) {
+            if (buffer != null)
+                return buffer.literalEquals(index + offset, literal);
+            return literal.equals(get(offset).getLiteral());
+        }
+
+        /**
+         * Gets the length of the literal of the token at index + offset.
+         */
+        public int getLength(int offset) {
+            if (buffer != null)
+                return buffer.getEnd(index + offset) - buffer.getIndex(index + offset);
+            return get(offset).getLiteral().length();
+        }
+
+        /**
+         * Gets a character of the literal of the token at index + offset,
+         * without slicing it from a token buffer.
+         */
+        public char charAt(int offset, int position) {
+            if (buffer != null)
+                return buffer.getSource().charAt(buffer.getIndex(index + offset) + position);
+            return get(offset).getLiteral().charAt(position);
         }
 
         /**
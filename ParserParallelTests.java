@@ -0,0 +1,54 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Regression tests for {@link Parser#parseSourceParallel(ForkJoinPool)} over
+ * a memory mapped source, whose decoding cursor must not be shared between
+ * the parsers of different threads.
+ */
+final class ParserParallelTests {
+
+    @Test
+    void testMappedViewHasOwnSource(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("source.plc");
+        Files.write(file, "DEF main() DO print('\u00e9'); END".getBytes(StandardCharsets.UTF_8));
+        TokenBuffer buffer = new Lexer(file).lexBuffer();
+        TokenBuffer view = buffer.view();
+        Assertions.assertNotSame(buffer.getSource(), view.getSource());
+        Assertions.assertEquals(buffer.size(), view.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            Assertions.assertEquals(buffer.get(i), view.get(i));
+        }
+    }
+
+    @Test
+    void testMappedNonAscii(@TempDir Path directory) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append("DEF m").append(i).append("() DO print('\u00e9'); RETURN x; END\n");
+        }
+        Path file = directory.resolve("source.plc");
+        Files.write(file, builder.toString().getBytes(StandardCharsets.UTF_8));
+        Ast.Source expected = new Parser(new Lexer(builder.toString()).lex()).parseSource();
+
+        ForkJoinPool pool = new ForkJoinPool(8);
+        try {
+            for (int i = 0; i < 20; i++) {
+                Parser parser = new Parser(new Lexer(file).lexBuffer());
+                Assertions.assertEquals(expected, parser.parseSourceParallel(pool));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
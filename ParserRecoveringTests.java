@@ -0,0 +1,92 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Tests for {@link Parser#parseSourceRecovering(List)}, which must report
+ * every error as a {@link ParseException} and return a partial tree.
+ */
+final class ParserRecoveringTests {
+
+    @Test
+    void testValidSource() {
+        String source = "LET x = 1;\nDEF f() DO LET y = x; LET z: Integer; RETURN y; END";
+        List<ParseException> errors = new ArrayList<>();
+        Ast.Source ast = parse(source, errors);
+        Assertions.assertTrue(errors.isEmpty());
+        Assertions.assertEquals(new Parser(new Lexer(source).lex()).parseSource(), ast);
+    }
+
+    @Test
+    void testDeclarationTypeAtEnd() {
+        List<ParseException> errors = new ArrayList<>();
+        Ast.Source ast = parse("DEF f() DO LET x:", errors);
+        Assertions.assertEquals(1, errors.size());
+        Assertions.assertEquals("Expected Identifier.", errors.get(0).getMessage());
+        Assertions.assertEquals(16, errors.get(0).getIndex());
+        Assertions.assertEquals(Arrays.asList(new Ast.Stmt.Error("Expected Identifier.", 16)),
+                ast.getMethods().get(0).getStatements());
+    }
+
+    @Test
+    void testDeclarationTypeAtEndNotRecovering() {
+        ParseException exception = Assertions.assertThrows(ParseException.class,
+                () -> new Parser(new Lexer("DEF f() DO LET x:").lex()).parseSource());
+        Assertions.assertEquals(16, exception.getIndex());
+    }
+
+    @Test
+    void testStatementErrorResumes() {
+        List<ParseException> errors = new ArrayList<>();
+        Ast.Source ast = parse("DEF f() DO LET x: Integer; y = ; END DEF g() DO RETURN 1; END", errors);
+        Assertions.assertEquals(1, errors.size());
+        Assertions.assertEquals(Arrays.asList(
+                new Ast.Stmt.Declaration("x", Optional.of("Integer"), Optional.empty()),
+                new Ast.Stmt.Error("Expected expression after = operator.", 29)
+        ), ast.getMethods().get(0).getStatements());
+        Assertions.assertEquals(Arrays.asList(new Ast.Stmt.Return(new Ast.Expr.Literal(BigInteger.ONE))),
+                ast.getMethods().get(1).getStatements());
+    }
+
+    @Test
+    void testMissingEnd() {
+        List<ParseException> errors = new ArrayList<>();
+        Ast.Source ast = parse("DEF f() DO x; DEF g() DO y; END", errors);
+        Assertions.assertEquals(1, errors.size());
+        Assertions.assertEquals("Expected END.", errors.get(0).getMessage());
+        Assertions.assertEquals(2, ast.getMethods().size());
+    }
+
+    @Test
+    void testFieldErrorSkipped() {
+        List<ParseException> errors = new ArrayList<>();
+        Ast.Source ast = parse("LET ; DEF f() DO x; END", errors);
+        Assertions.assertEquals(1, errors.size());
+        Assertions.assertEquals(Collections.emptyList(), ast.getFields());
+        Assertions.assertEquals(1, ast.getMethods().size());
+    }
+
+    @Test
+    void testEveryPrefix() {
+        String source = "LET a: Integer = 1;\nDEF f(x: Integer): Integer DO LET y = x; LET z: Integer; IF y THEN RETURN y; ELSE y = (1 + 2); END RETURN f(x); END";
+        List<Token> tokens = new Lexer(source).lex();
+        for (int i = 0; i <= tokens.size(); i++) {
+            List<Token> prefix = tokens.subList(0, i);
+            List<ParseException> errors = new ArrayList<>();
+            Assertions.assertDoesNotThrow(() -> new Parser(prefix).parseSourceRecovering(errors));
+        }
+    }
+
+    private static Ast.Source parse(String source, List<ParseException> errors) {
+        return new Parser(new Lexer(source).lex()).parseSourceRecovering(errors);
+    }
+
+}
@@ -0,0 +1,116 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link Lexer#relex(List, SourceMap, int, int, String)}, whose
+ * tokens and source map must match lexing the edited text from scratch.
+ */
+final class RelexTests {
+
+    private static final String SOURCE = "LET x = 1;\nDEF f(a, b) DO\n    print(\"a b\");\n    RETURN a + b * 2.5;\nEND\n";
+    private static final String[] INSERTS = {"", " ", "\n", "x", "1", "+", "\"", "'c'", "LET y;\n", "a\nb", "DO"};
+
+    @Test
+    void testInsertInsideToken() {
+        assertRelex(SOURCE, SOURCE.indexOf("print") + 2, 0, "xx");
+    }
+
+    @Test
+    void testRemoveNewline() {
+        assertRelex(SOURCE, SOURCE.indexOf('\n'), 1, "");
+    }
+
+    @Test
+    void testInsertLines() {
+        assertRelex(SOURCE, SOURCE.indexOf("RETURN"), 0, "x = 1;\n    y = 2;\n    ");
+    }
+
+    @Test
+    void testEditAtEnd() {
+        assertRelex(SOURCE, SOURCE.length(), 0, "DEF g() DO END");
+    }
+
+    @Test
+    void testRandomEdits() {
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            int offset = random.nextInt(SOURCE.length() + 1);
+            int removed = random.nextInt(Math.min(8, SOURCE.length() - offset) + 1);
+            String inserted = INSERTS[random.nextInt(INSERTS.length)];
+            assertRelex(SOURCE, offset, removed, inserted);
+        }
+    }
+
+    @Test
+    void testChainedEdits() {
+        Random random = new Random(11);
+        String text = SOURCE;
+        Lexer lexer = new Lexer(text);
+        List<Token> tokens = lexer.lex();
+        SourceMap lines = lexer.getSourceMap();
+        for (int i = 0; i < 300; i++) {
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(Math.min(4, text.length() - offset) + 1);
+            String inserted = INSERTS[random.nextInt(INSERTS.length)];
+            String edited = text.substring(0, offset) + inserted + text.substring(offset + removed);
+            Lexer relexer = new Lexer(edited);
+            relexer.setSymbols(lexer.getSymbols());
+            List<Token> relexed;
+            try {
+                relexed = relexer.relex(tokens, lines, offset, removed, inserted);
+            } catch (ParseException e) {
+                continue;
+            }
+            assertMatches(edited, relexed, relexer.getSourceMap());
+            text = edited;
+            tokens = relexed;
+            lines = relexer.getSourceMap();
+        }
+    }
+
+    @Test
+    void testTokensAreShared() {
+        Lexer lexer = new Lexer(SOURCE);
+        List<Token> tokens = lexer.lex();
+        String edited = SOURCE + "x";
+        Lexer relexer = new Lexer(edited);
+        List<Token> relexed = relexer.relex(tokens, lexer.getSourceMap(), SOURCE.length(), 0, "x");
+        Assertions.assertSame(tokens.get(0), relexed.get(0));
+    }
+
+    private static void assertRelex(String source, int offset, int removed, String inserted) {
+        String edited = source.substring(0, offset) + inserted + source.substring(offset + removed);
+        Lexer lexer = new Lexer(source);
+        List<Token> tokens;
+        try {
+            tokens = lexer.lex();
+        } catch (ParseException e) {
+            return;
+        }
+        Lexer relexer = new Lexer(edited);
+        relexer.setSymbols(lexer.getSymbols());
+        List<Token> relexed;
+        try {
+            relexed = relexer.relex(tokens, lexer.getSourceMap(), offset, removed, inserted);
+        } catch (ParseException e) {
+            Assertions.assertThrows(ParseException.class, () -> new Lexer(edited).lex());
+            return;
+        }
+        assertMatches(edited, relexed, relexer.getSourceMap());
+    }
+
+    private static void assertMatches(String edited, List<Token> relexed, SourceMap lines) {
+        Assertions.assertEquals(new Lexer(edited).lex(), relexed, edited);
+        SourceMap expected = SourceMap.of(edited);
+        Assertions.assertEquals(expected.getLineCount(), lines.getLineCount(), edited);
+        for (int line = 1; line <= expected.getLineCount(); line++) {
+            Assertions.assertEquals(expected.getLineStart(line), lines.getLineStart(line), edited);
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package plc.project;
+
+import java.util.Arrays;
+
+/**
+ * Translates character indices into line and column numbers, both counted
+ * from 1. The lexer records the offset at which each line starts as it skips
+ * whitespace (see {@link Lexer#getSourceMap()}), so a lookup is a binary
+ * search rather than a rescan of the source.
+ *
+ * A line ends at a {@code '\n'}, so {@code "\r\n"} counts as a single line
+ * terminator and the {@code '\r'} is the last column of its line.
+ */
+public final class SourceMap {
+
+    private int[] starts = new int[16];
+    private int size = 1;
+
+    /**
+     * Creates a map with a single line starting at index 0.
+     */
+    public SourceMap() {
+        this(0);
+    }
+
+    /**
+     * Creates a map with a single line starting at {@code origin}, which is
+     * the first index of the input being lexed.
+     */
+    SourceMap(int origin) {
+        starts[0] = origin;
+    }
+
+    /**
+     * Builds the map of the given source by scanning it for line terminators,
+     * for sources which were not lexed by a {@link Lexer}.
+     */
+    public static SourceMap of(CharSequence source) {
+        return of(source, 0, source.length());
+    }
+
+    /**
+     * Builds the map of the part of {@code source} between {@code start} and
+     * {@code end}, with the first line starting at {@code start}.
+     */
+    static SourceMap of(CharSequence source, int start, int end) {
+        SourceMap map = new SourceMap(start);
+        for (int i = start; i < end; i++) {
+            if (source.charAt(i) == '\n') {
+                map.addLine(i + 1);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Records that a line starts at {@code start}. Lines must be added in
+     * order, and a start which is already recorded is ignored.
+     */
+    void addLine(int start) {
+        if (start <= starts[size - 1]) {
+            return;
+        }
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+        }
+        starts[size++] = start;
+    }
+
+    /**
+     * Appends the lines of a map covering the input after this one, as when
+     * joining the maps of consecutive chunks.
+     */
+    void addLines(SourceMap other) {
+        // the first line of the other map continues the last line of this one
+        for (int i = 1; i < other.size; i++) {
+            addLine(other.starts[i]);
+        }
+    }
+
+    /**
+     * Returns the map of the text after an edit which replaced {@code
+     * removed} characters at {@code offset} with {@code inserted}, where this
+     * is the map of the text before the edit. Only the inserted text is
+     * scanned: the lines starting before the edit are kept and those after
+     * it are moved by the change in length.
+     */
+    SourceMap edit(int offset, int removed, CharSequence inserted) {
+        // a line starting within the removed text followed a removed newline
+        int keep = getLine(offset);
+        int resume = getLine(offset + removed);
+        int delta = inserted.length() - removed;
+        SourceMap map = new SourceMap(starts[0]);
+        map.starts = Arrays.copyOf(starts, keep + size - resume + 16);
+        map.size = keep;
+        for (int i = 0; i < inserted.length(); i++) {
+            if (inserted.charAt(i) == '\n') {
+                map.addLine(offset + i + 1);
+            }
+        }
+        for (int i = resume; i < size; i++) {
+            map.addLine(starts[i] + delta);
+        }
+        return map;
+    }
+
+    public int getLineCount() {
+        return size;
+    }
+
+    /**
+     * Returns the index of the first character of the given line.
+     */
+    public int getLineStart(int line) {
+        if (line < 1 || line > size) {
+            throw new IndexOutOfBoundsException("Line " + line + " is not in 1.." + size + ".");
+        }
+        return starts[line - 1];
+    }
+
+    /**
+     * Returns the line containing the character at {@code index}. Indices
+     * before the first line are reported as line 1.
+     */
+    public int getLine(int index) {
+        int low = 1;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] <= index) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public int getColumn(int index) {
+        return index - starts[getLine(index) - 1] + 1;
+    }
+
+    /**
+     * Formats the position of {@code index} as {@code line:column}.
+     */
+    public String format(int index) {
+        int line = getLine(index);
+        return line + ":" + (index - starts[line - 1] + 1);
+    }
+
+}
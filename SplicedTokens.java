@@ -0,0 +1,160 @@
+package plc.project;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The tokens returned by {@link Lexer#relex(List, SourceMap, int, int,
+ * String)}: the previous tokens with a range replaced by re-lexed ones,
+ * without copying the tokens which were kept.
+ *
+ * The list is a sequence of segments, each a range of an underlying list
+ * whose tokens are moved by a fixed number of characters. A moved token is
+ * created when it is read, so an edit costs time in the number of segments
+ * and re-lexed tokens rather than in the length of the source. Splicing into
+ * a spliced list reuses its segments, and once there are more than {@link
+ * #MAX_SEGMENTS} the tokens are copied into a single list again, so that
+ * reading stays fast over any number of edits.
+ *
+ * The list cannot be modified.
+ */
+final class SplicedTokens extends AbstractList<Token> implements RandomAccess {
+
+    private static final int MAX_SEGMENTS = 64;
+
+    private final List<Token>[] lists;
+    private final int[] offsets;
+    private final int[] shifts;
+    private final int[] ends;
+    private final int segments;
+
+    private SplicedTokens(List<Token>[] lists, int[] offsets, int[] shifts, int[] ends, int segments) {
+        this.lists = lists;
+        this.offsets = offsets;
+        this.shifts = shifts;
+        this.ends = ends;
+        this.segments = segments;
+    }
+
+    /**
+     * Returns the tokens of {@code previous} before {@code from}, then
+     * {@code inserted}, then the tokens of {@code previous} from {@code to}
+     * on, moved by {@code shift} characters.
+     */
+    static List<Token> splice(List<Token> previous, int from, int to, List<Token> inserted, int shift) {
+        Builder builder = new Builder();
+        builder.addRange(previous, 0, from, 0);
+        builder.add(inserted, 0, inserted.size(), 0);
+        builder.addRange(previous, to, previous.size(), shift);
+        if (builder.segments > MAX_SEGMENTS) {
+            List<Token> tokens = new ArrayList<>(builder.size());
+            tokens.addAll(builder.build());
+            return tokens;
+        }
+        return builder.build();
+    }
+
+    @Override
+    public Token get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " is not in 0.." + size() + ".");
+        }
+        int segment = segment(index);
+        int start = segment == 0 ? 0 : ends[segment - 1];
+        Token token = lists[segment].get(offsets[segment] + index - start);
+        return shift(token, shifts[segment]);
+    }
+
+    @Override
+    public int size() {
+        return segments == 0 ? 0 : ends[segments - 1];
+    }
+
+    /**
+     * Returns the segment holding the token at {@code index}.
+     */
+    private int segment(int index) {
+        int low = 0;
+        int high = segments - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] <= index) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static Token shift(Token token, int shift) {
+        if (shift == 0) {
+            return token;
+        }
+        Token shifted = new Token(token.getType(), token.getLiteral(), token.getIndex() + shift);
+        shifted.symbol = token.symbol;
+        return shifted;
+    }
+
+    private static final class Builder {
+
+        @SuppressWarnings("unchecked")
+        private List<Token>[] lists = new List[8];
+        private int[] offsets = new int[8];
+        private int[] shifts = new int[8];
+        private int[] ends = new int[8];
+        private int segments = 0;
+
+        /**
+         * Adds the tokens of a list between {@code from} and {@code to},
+         * taking the segments of a spliced list apart.
+         */
+        private void addRange(List<Token> list, int from, int to, int shift) {
+            if (!(list instanceof SplicedTokens)) {
+                add(list, from, to, shift);
+                return;
+            }
+            SplicedTokens spliced = (SplicedTokens) list;
+            for (int segment = from < to ? spliced.segment(from) : spliced.segments; segment < spliced.segments; segment++) {
+                int start = segment == 0 ? 0 : spliced.ends[segment - 1];
+                if (start >= to) {
+                    break;
+                }
+                int first = Math.max(from, start) - start;
+                int last = Math.min(to, spliced.ends[segment]) - start;
+                add(spliced.lists[segment], spliced.offsets[segment] + first, spliced.offsets[segment] + last,
+                        spliced.shifts[segment] + shift);
+            }
+        }
+
+        private void add(List<Token> list, int from, int to, int shift) {
+            if (from >= to) {
+                return;
+            }
+            if (segments == lists.length) {
+                lists = Arrays.copyOf(lists, segments * 2);
+                offsets = Arrays.copyOf(offsets, segments * 2);
+                shifts = Arrays.copyOf(shifts, segments * 2);
+                ends = Arrays.copyOf(ends, segments * 2);
+            }
+            lists[segments] = list;
+            offsets[segments] = from;
+            shifts[segments] = shift;
+            ends[segments] = size() + to - from;
+            segments++;
+        }
+
+        private int size() {
+            return segments == 0 ? 0 : ends[segments - 1];
+        }
+
+        private SplicedTokens build() {
+            return new SplicedTokens(lists, offsets, shifts, ends, segments);
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for lexing a {@link Reader} through {@link Lexer#next()}, and for
+ * parsing the tokens as they are pulled, which must match lexing and parsing
+ * the whole text.
+ */
+final class StreamingTests {
+
+    private static final String METHOD = "DEF f(): Integer DO\n    LET s = \"a b c\";\n    WHILE a > 1.5 DO a = 'x'; END\n    RETURN a + b * 2;\nEND\n";
+
+    @Test
+    void testNextMatchesLex() {
+        String source = repeat(METHOD, 400);
+        Assertions.assertEquals(new Lexer(source).lex(), pull(new Lexer(new StringReader(source))));
+    }
+
+    @Test
+    void testShortReads() {
+        String source = repeat(METHOD, 400);
+        Lexer lexer = new Lexer(new ShortReader(new StringReader(source), 7));
+        Assertions.assertEquals(new Lexer(source).lex(), pull(lexer));
+        Assertions.assertEquals(SourceMap.of(source).getLineCount(), lexer.getSourceMap().getLineCount());
+    }
+
+    @Test
+    void testTokenLongerThanWindow() {
+        String identifier = repeat("abc_", 10000);
+        String source = "LET " + identifier + " = \"" + repeat("xyz ", 10000) + "\";";
+        Assertions.assertEquals(new Lexer(source).lex(), pull(new Lexer(new ShortReader(new StringReader(source), 100))));
+    }
+
+    @Test
+    void testParseFromReader() {
+        String source = "LET x = 1;\n" + repeat(METHOD, 200);
+        Ast.Source expected = new Parser(new Lexer(source).lex()).parseSource();
+        Assertions.assertEquals(expected, new Parser(new Lexer(new StringReader(source))).parseSource());
+    }
+
+    @Test
+    void testParseErrorFromReader() {
+        String source = repeat(METHOD, 50) + "DEF g() DO y = ; END";
+        ParseException expected = Assertions.assertThrows(ParseException.class,
+                () -> new Parser(new Lexer(source).lex()).parseSource());
+        ParseException actual = Assertions.assertThrows(ParseException.class,
+                () -> new Parser(new Lexer(new StringReader(source))).parseSource());
+        Assertions.assertEquals(expected.getMessage(), actual.getMessage());
+        Assertions.assertEquals(expected.getIndex(), actual.getIndex());
+    }
+
+    @Test
+    void testLexErrorFromReader() {
+        String source = repeat(METHOD, 50) + "LET c = 'ab';";
+        ParseException expected = Assertions.assertThrows(ParseException.class, () -> new Lexer(source).lex());
+        ParseException actual = Assertions.assertThrows(ParseException.class,
+                () -> pull(new Lexer(new StringReader(source))));
+        Assertions.assertEquals(expected.getIndex(), actual.getIndex());
+    }
+
+    private static List<Token> pull(TokenSource source) {
+        List<Token> tokens = new ArrayList<>();
+        for (Token token = source.next(); token != null; token = source.next()) {
+            tokens.add(token);
+        }
+        Assertions.assertNull(source.next());
+        return tokens;
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A reader returning at most {@code limit} characters from each read.
+     */
+    private static final class ShortReader extends FilterReader {
+
+        private final int limit;
+
+        private ShortReader(Reader reader, int limit) {
+            super(reader);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            return super.read(buffer, offset, Math.min(length, limit));
+        }
+
+    }
+
+}
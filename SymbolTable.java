@@ -0,0 +1,116 @@
+package plc.project;
+
+import java.util.Arrays;
+
+/**
+ * Interns identifier names, assigning each distinct name a stable id in the
+ * order it is first seen. Names are looked up directly from the source text,
+ * so interning a name which is already known does not allocate.
+ *
+ * A symbol table is not thread safe.
+ */
+public final class SymbolTable {
+
+    private String[] names = new String[16];
+    private int[] hashes = new int[16];
+    private int[] slots = new int[32];
+    private int size = 0;
+
+    public SymbolTable() {
+        Arrays.fill(slots, -1);
+    }
+
+    /**
+     * Returns the id of the name spelled by {@code text} between {@code start}
+     * and {@code end}, assigning the next id if it has not been seen.
+     */
+    public int intern(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot];
+            if (id < 0) {
+                return add(text.subSequence(start, end).toString(), hash, slot);
+            } else if (hashes[id] == hash && equals(names[id], text, start, end)) {
+                return id;
+            }
+        }
+    }
+
+    public int intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    /**
+     * Returns the id of the name, or {@code -1} if it has not been interned.
+     */
+    public int lookup(String name) {
+        int hash = name.hashCode();
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask; slots[slot] >= 0; slot = (slot + 1) & mask) {
+            if (names[slots[slot]].equals(name)) {
+                return slots[slot];
+            }
+        }
+        return -1;
+    }
+
+    public String getName(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("Unknown symbol " + id + ".");
+        }
+        return names[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        names[size] = name;
+        hashes[size] = hash;
+        slots[slot] = size;
+        if (++size * 2 > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, -1);
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (slots[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String name, CharSequence text, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
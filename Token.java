@@ -8,17 +8,99 @@ public final class Token {
         DECIMAL,
         CHARACTER,
         STRING,
-        OPERATOR
+        OPERATOR,
+        /**
+         * Text which could not be lexed, only produced by {@link
+         * Lexer#lexRecovering(java.util.List)}.
+         */
+        ERROR
+    }
+
+    /**
+     * The reserved words of the language. Keywords are still lexed as {@link
+     * Type#IDENTIFIER} tokens, but are tagged with their keyword so that the
+     * parser can compare them by identity instead of by literal.
+     */
+    public enum Keyword {
+        LET, DEF, DO, END, IF, ELSE, FOR, IN, WHILE, RETURN, TRUE, FALSE, NIL, AND, OR;
+
+        /**
+         * Keywords by a perfect hash of their first and last character and
+         * length, see {@link #hash(char, char, int)}.
+         */
+        private static final Keyword[] TABLE = new Keyword[32];
+
+        static {
+            for (Keyword keyword : values()) {
+                String name = keyword.name();
+                int hash = hash(name.charAt(0), name.charAt(name.length() - 1), name.length());
+                if (TABLE[hash] != null) {
+                    throw new AssertionError("Keyword hash collision: " + keyword + ", " + TABLE[hash] + ".");
+                }
+                TABLE[hash] = keyword;
+            }
+        }
+
+        /**
+         * Returns the keyword spelled by {@code text} between {@code start} and
+         * {@code end}, or {@code null} if it is not a keyword.
+         */
+        public static Keyword of(CharSequence text, int start, int end) {
+            int length = end - start;
+            if (length < 2 || length > 6) {
+                return null;
+            }
+            Keyword keyword = TABLE[hash(text.charAt(start), text.charAt(end - 1), length)];
+            if (keyword == null || keyword.name().length() != length) {
+                return null;
+            }
+            for (int i = 0; i < length; i++) {
+                if (keyword.name().charAt(i) != text.charAt(start + i)) {
+                    return null;
+                }
+            }
+            return keyword;
+        }
+
+        private static int hash(char first, char last, int length) {
+            return (first + last + length * 26) & 31;
+        }
+
     }
 
     private final Type type;
-    private final String literal;
     private final int index;
+    private final CharSequence source;
+    private final int end;
+    private final Keyword keyword;
+    private final long value;
+    private final int scale;
+    private String literal;
+    int symbol = -1;
 
     public Token(Type type, String literal, int index) {
         this.type = type;
         this.literal = literal;
         this.index = index;
+        this.source = null;
+        this.end = index + literal.length();
+        this.keyword = type == Type.IDENTIFIER ? Keyword.of(literal, 0, literal.length()) : null;
+        this.scale = scale(type, literal, 0, literal.length());
+        this.value = scale < 0 ? 0 : unscaled(literal, 0, literal.length());
+    }
+
+    /**
+     * Creates a token whose literal is sliced from {@code source} (between
+     * {@code index} and {@code end}) the first time it is requested.
+     */
+    Token(Type type, CharSequence source, int index, int end) {
+        this.type = type;
+        this.index = index;
+        this.source = source;
+        this.end = end;
+        this.keyword = type == Type.IDENTIFIER ? Keyword.of(source, index, end) : null;
+        this.scale = scale(type, source, index, end);
+        this.value = scale < 0 ? 0 : unscaled(source, index, end);
     }
 
     public Type getType() {
@@ -26,6 +108,9 @@ public final class Token {
     }
 
     public String getLiteral() {
+        if (literal == null) {
+            literal = source.subSequence(index, end).toString();
+        }
         return literal;
     }
 
@@ -33,17 +118,110 @@ public final class Token {
         return index;
     }
 
+    /**
+     * Returns the keyword of an identifier token, or {@code null} if the token
+     * is not a keyword.
+     */
+    public Keyword getKeyword() {
+        return keyword;
+    }
+
+    /**
+     * Returns true if this is an {@link Type#INTEGER} or {@link Type#DECIMAL}
+     * token whose value was decoded into {@link #getUnscaledValue()} and
+     * {@link #getScale()} when the token was created. Literals which do not
+     * fit in a {@code long} need to be parsed with arbitrary precision.
+     */
+    public boolean hasValue() {
+        return scale >= 0;
+    }
+
+    /**
+     * Returns the decoded value with the decimal point removed, so that the
+     * literal's value is {@code getUnscaledValue() * 10^-getScale()}.
+     */
+    public long getUnscaledValue() {
+        requireValue();
+        return value;
+    }
+
+    /**
+     * Returns the number of digits after the decimal point, which is always
+     * zero for integers.
+     */
+    public int getScale() {
+        requireValue();
+        return scale;
+    }
+
+    /**
+     * Returns the {@link SymbolTable} id of an identifier token which is not a
+     * keyword, or {@code -1} if the token was not interned.
+     */
+    public int getSymbol() {
+        return symbol;
+    }
+
+    private void requireValue() {
+        if (scale < 0) {
+            throw new IllegalStateException("Token " + this + " has no decoded value.");
+        }
+    }
+
+    /**
+     * Returns the scale of a numeric literal, or -1 if the token is not
+     * numeric or its value does not fit in a {@code long}.
+     */
+    private static int scale(Type type, CharSequence text, int start, int end) {
+        if (type != Type.INTEGER && type != Type.DECIMAL) {
+            return -1;
+        }
+        int i = start < end && (text.charAt(start) == '+' || text.charAt(start) == '-') ? start + 1 : start;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && !fraction && type == Type.DECIMAL) {
+                fraction = true;
+            } else if (c < '0' || c > '9') {
+                return -1;
+            } else {
+                digits++;
+                if (fraction) {
+                    scale++;
+                }
+            }
+        }
+        return digits > 0 && digits <= 18 ? scale : -1;
+    }
+
+    /**
+     * Decodes the digits of a numeric literal already validated by {@link
+     * #scale(Type, CharSequence, int, int)}.
+     */
+    private static long unscaled(CharSequence text, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            }
+        }
+        return text.charAt(start) == '-' ? -value : value;
+    }
+
     @Override
     public boolean equals(Object obj) {
         return obj instanceof Token
                 && type == ((Token) obj).type
-                && literal.equals(((Token) obj).literal)
+                && getLiteral().equals(((Token) obj).getLiteral())
                 && index == ((Token) obj).index;
     }
 
     @Override
     public String toString() {
-        return type + "=" + literal + "@" + index;
+        return type + "=" + getLiteral() + "@" + index;
     }
 
 }
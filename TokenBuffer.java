@@ -0,0 +1,178 @@
+package plc.project;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A compact alternative to a {@code List<Token>}, storing each token's type,
+ * start and end offset, keyword and symbol in parallel arrays backed by the
+ * original source.
+ * Literals are only sliced from the source when requested, so a buffer costs
+ * a few bytes per token instead of a {@link Token} and {@link String} each.
+ *
+ * The {@link Parser} can run directly on a buffer, and {@link #asList()}
+ * provides a list view for code expecting tokens.
+ */
+public final class TokenBuffer {
+
+    private static final Token.Type[] TYPES = Token.Type.values();
+
+    private static final Token.Keyword[] KEYWORDS = Token.Keyword.values();
+
+    private final CharSequence source;
+    private final SymbolTable symbolTable;
+    private byte[] types = new byte[64];
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private byte[] keywords = new byte[64];
+    private int[] symbols = new int[64];
+    private int size = 0;
+
+    public TokenBuffer(CharSequence source) {
+        this(source, null);
+    }
+
+    /**
+     * Creates a buffer which interns non-keyword identifiers into the given
+     * symbol table as they are added.
+     */
+    public TokenBuffer(CharSequence source, SymbolTable symbolTable) {
+        this.source = source;
+        this.symbolTable = symbolTable;
+    }
+
+    private TokenBuffer(TokenBuffer buffer, CharSequence source) {
+        this.source = source;
+        this.symbolTable = buffer.symbolTable;
+        this.types = buffer.types;
+        this.starts = buffer.starts;
+        this.ends = buffer.ends;
+        this.keywords = buffer.keywords;
+        this.symbols = buffer.symbols;
+        this.size = buffer.size;
+    }
+
+    /**
+     * Returns a buffer of the same tokens which can be read from another
+     * thread. Reading a {@link MappedSource} moves its cursor, so the
+     * returned buffer reads through a {@link MappedSource#view()} of its
+     * own. Any other source is shared. The returned buffer shares the
+     * token arrays, so it must only be read.
+     */
+    TokenBuffer view() {
+        return source instanceof MappedSource ? new TokenBuffer(this, ((MappedSource) source).view()) : this;
+    }
+
+    /**
+     * Appends a token spanning {@code start} (inclusive) to {@code end}
+     * (exclusive) of the source.
+     */
+    public void add(Token.Type type, int start, int end) {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, size * 2);
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+            keywords = Arrays.copyOf(keywords, size * 2);
+            symbols = Arrays.copyOf(symbols, size * 2);
+        }
+        Token.Keyword keyword = type == Token.Type.IDENTIFIER ? Token.Keyword.of(source, start, end) : null;
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        keywords[size] = (byte) (keyword == null ? -1 : keyword.ordinal());
+        symbols[size] = type == Token.Type.IDENTIFIER && keyword == null && symbolTable != null
+                ? symbolTable.intern(source, start, end)
+                : -1;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public CharSequence getSource() {
+        return source;
+    }
+
+    public Token.Type getType(int token) {
+        return TYPES[types[check(token)]];
+    }
+
+    public int getIndex(int token) {
+        return starts[check(token)];
+    }
+
+    public int getEnd(int token) {
+        return ends[check(token)];
+    }
+
+    public Token.Keyword getKeyword(int token) {
+        int keyword = keywords[check(token)];
+        return keyword < 0 ? null : KEYWORDS[keyword];
+    }
+
+    public int getSymbol(int token) {
+        return symbols[check(token)];
+    }
+
+    public String getLiteral(int token) {
+        return source.subSequence(starts[check(token)], ends[token]).toString();
+    }
+
+    /**
+     * Returns true if the token's literal is equal to the given string,
+     * comparing against the source without slicing the literal.
+     */
+    public boolean literalEquals(int token, String literal) {
+        int start = starts[check(token)];
+        if (ends[token] - start != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (source.charAt(start + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the token as a {@link Token}, whose literal is sliced lazily.
+     */
+    public Token get(int token) {
+        Token result = new Token(TYPES[types[check(token)]], source, starts[token], ends[token]);
+        result.symbol = symbols[token];
+        return result;
+    }
+
+    /**
+     * Returns a read-only list view, creating {@link Token}s on access.
+     */
+    public List<Token> asList() {
+        return new View();
+    }
+
+    private int check(int token) {
+        if (token < 0 || token >= size) {
+            throw new IndexOutOfBoundsException("Index " + token + " out of bounds for length " + size);
+        }
+        return token;
+    }
+
+    private final class View extends AbstractList<Token> implements RandomAccess {
+
+        @Override
+        public Token get(int index) {
+            return TokenBuffer.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+    }
+
+}
@@ -0,0 +1,226 @@
+package plc.project;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of lexer output, so that unchanged sources are not lexed
+ * again. Entries are stored in a directory, one file per source and {@link
+ * Lexer#VERSION}, named by the SHA-256 hash from {@link #digest(String)} and
+ * the lexer version. A changed source hashes to a different file, and a
+ * changed lexer uses different names, so entries never need to be
+ * invalidated.
+ *
+ * An entry records each token's type and offsets as varints, and nothing
+ * else, preceded by the lexer version and a CRC-32 of those records. Keywords, symbols and literals
+ * are recovered from the source when the entry is loaded into a {@link
+ * TokenBuffer}, exactly as when lexing it.
+ *
+ * Entries are written to a temporary file and atomically moved into place,
+ * and are never modified afterwards. Any number of threads or processes can
+ * therefore share a directory. A reader sees either no entry or a complete
+ * one, and an entry which fails to load, for example after a crash, is
+ * lexed and written again.
+ */
+public final class TokenCache {
+
+    private static final int MAGIC = 0x504C4354;
+    private static final int VERSION = 2;
+    private static final Token.Type[] TYPES = Token.Type.values();
+
+    private final Path directory;
+
+    public TokenCache(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * Returns the tokens of the given source, loading them from the cache if
+     * possible and otherwise lexing the source and caching the result. Any
+     * {@link ParseException} from lexing is thrown as usual, and nothing is
+     * cached for that source.
+     */
+    public TokenBuffer lex(String source) throws IOException {
+        return lex(source, new SymbolTable());
+    }
+
+    /**
+     * As {@link #lex(String)}, interning identifiers into the given symbol
+     * table.
+     */
+    public TokenBuffer lex(String source, SymbolTable symbols) throws IOException {
+        Path file = directory.resolve(hash(source) + "-" + Lexer.VERSION + ".tokens");
+        TokenBuffer cached = load(file, source, symbols);
+        if (cached != null) {
+            return cached;
+        }
+
+        Lexer lexer = new Lexer(source);
+        lexer.setSymbols(symbols);
+        TokenBuffer buffer = lexer.lexBuffer();
+        store(file, buffer);
+        return buffer;
+    }
+
+    /**
+     * Maps and decodes an entry, returning {@code null} if it does not exist,
+     * fails its checksum or does not describe the given source as lexed by
+     * this version of the lexer.
+     */
+    private static TokenBuffer load(Path file, String source, SymbolTable symbols) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        try {
+            if (bytes.getInt() != MAGIC || readVarint(bytes) != VERSION || readVarint(bytes) != Lexer.VERSION) {
+                return null;
+            }
+            int checksum = bytes.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.duplicate());
+            if ((int) crc.getValue() != checksum || readVarint(bytes) != source.length()) {
+                return null;
+            }
+            int count = readVarint(bytes);
+            if (count < 0 || count > bytes.remaining() / 3) {
+                return null;
+            }
+            // symbols are only interned once the entry is known to be valid
+            int[] offsets = new int[count * 2];
+            byte[] types = new byte[count];
+            int end = 0;
+            for (int i = 0; i < count; i++) {
+                types[i] = bytes.get();
+                int gap = readVarint(bytes);
+                int length = readVarint(bytes);
+                if (types[i] < 0 || types[i] >= TYPES.length || gap < 0 || length <= 0
+                        || (long) end + gap + length > source.length()) {
+                    return null;
+                }
+                int start = end + gap;
+                end = start + length;
+                offsets[2 * i] = start;
+                offsets[2 * i + 1] = end;
+            }
+            if (bytes.hasRemaining()) {
+                return null;
+            }
+
+            TokenBuffer buffer = new TokenBuffer(source, symbols);
+            for (int i = 0; i < count; i++) {
+                buffer.add(TYPES[types[i]], offsets[2 * i], offsets[2 * i + 1]);
+            }
+            return buffer;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes an entry to a temporary file in the cache directory and moves it
+     * into place, replacing any invalid entry.
+     */
+    private void store(Path file, TokenBuffer buffer) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(29 + buffer.size() * 11);
+        bytes.putInt(MAGIC);
+        writeVarint(bytes, VERSION);
+        writeVarint(bytes, Lexer.VERSION);
+        int checksum = bytes.position();
+        bytes.putInt(0);
+        writeVarint(bytes, buffer.getSource().length());
+        writeVarint(bytes, buffer.size());
+        int end = 0;
+        for (int i = 0; i < buffer.size(); i++) {
+            bytes.put((byte) buffer.getType(i).ordinal());
+            writeVarint(bytes, buffer.getIndex(i) - end);
+            writeVarint(bytes, buffer.getEnd(i) - buffer.getIndex(i));
+            end = buffer.getEnd(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), checksum + 4, bytes.position() - checksum - 4);
+        bytes.putInt(checksum, (int) crc.getValue());
+
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                out.write(bytes.array(), 0, bytes.position());
+            }
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static String hash(String source) {
+        byte[] digest = digest(source);
+        StringBuilder builder = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            builder.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the SHA-256 hash of a source. A source without surrogates is
+     * hashed as UTF-8, which is fast and distinct for such strings. UTF-8
+     * replaces unpaired surrogates, so any other source is hashed as a byte
+     * which never occurs in UTF-8 followed by its UTF-16 code units.
+     */
+    static byte[] digest(String source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is required to be supported.", e);
+        }
+        for (int i = 0; i < source.length(); i++) {
+            if (Character.isSurrogate(source.charAt(i))) {
+                digest.update((byte) 0xFF);
+                return digest.digest(source.getBytes(StandardCharsets.UTF_16BE));
+            }
+        }
+        return digest.digest(source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void writeVarint(ByteBuffer bytes, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        bytes.put((byte) value);
+    }
+
+    static int readVarint(ByteBuffer bytes) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = bytes.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+}
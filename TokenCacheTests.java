@@ -0,0 +1,109 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Tests for {@link TokenCache}, which must return the tokens of a fresh lex
+ * whether an entry is missing, intact, damaged or from another version.
+ */
+final class TokenCacheTests {
+
+    private static final String SOURCE = "LET x = 1;\nDEF main() DO print(\"cafe\", 'c', 2.5); RETURN x; END\n";
+
+    @Test
+    void testLexAndLoad(@TempDir Path directory) throws IOException {
+        TokenCache cache = new TokenCache(directory);
+        assertLexed(SOURCE, cache.lex(SOURCE));
+        Path entry = entry(directory);
+        byte[] stored = Files.readAllBytes(entry);
+        assertLexed(SOURCE, cache.lex(SOURCE));
+        Assertions.assertArrayEquals(stored, Files.readAllBytes(entry));
+    }
+
+    @Test
+    void testEntryNamedByLexerVersion(@TempDir Path directory) throws IOException {
+        new TokenCache(directory).lex(SOURCE);
+        String name = entry(directory).getFileName().toString();
+        Assertions.assertTrue(name.endsWith("-" + Lexer.VERSION + ".tokens"), name);
+    }
+
+    @Test
+    void testLexerVersionMismatch(@TempDir Path directory) throws IOException {
+        TokenCache cache = new TokenCache(directory);
+        cache.lex(SOURCE);
+        Path entry = entry(directory);
+        byte[] bytes = Files.readAllBytes(entry);
+        // the magic, then the cache and lexer versions as one byte varints
+        Assertions.assertEquals(Lexer.VERSION, bytes[5]);
+        bytes[5] = (byte) (Lexer.VERSION + 1);
+        Files.write(entry, bytes);
+        assertLexed(SOURCE, cache.lex(SOURCE));
+        Assertions.assertEquals(Lexer.VERSION, Files.readAllBytes(entry)[5]);
+    }
+
+    @Test
+    void testCorruptedEntries(@TempDir Path directory) throws IOException {
+        TokenCache cache = new TokenCache(directory);
+        cache.lex(SOURCE);
+        Path entry = entry(directory);
+        byte[] valid = Files.readAllBytes(entry);
+        for (int i = 0; i < valid.length; i++) {
+            byte[] bytes = valid.clone();
+            bytes[i] ^= 0x21;
+            Files.write(entry, bytes);
+            assertLexed(SOURCE, cache.lex(SOURCE));
+            Assertions.assertArrayEquals(valid, Files.readAllBytes(entry));
+        }
+    }
+
+    @Test
+    void testTruncatedEntries(@TempDir Path directory) throws IOException {
+        TokenCache cache = new TokenCache(directory);
+        cache.lex(SOURCE);
+        Path entry = entry(directory);
+        byte[] valid = Files.readAllBytes(entry);
+        for (int length = 0; length < valid.length; length++) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(valid, 0, bytes, 0, length);
+            Files.write(entry, bytes);
+            assertLexed(SOURCE, cache.lex(SOURCE));
+        }
+    }
+
+    @Test
+    void testInvalidSourceNotCached(@TempDir Path directory) throws IOException {
+        TokenCache cache = new TokenCache(directory);
+        Assertions.assertThrows(ParseException.class, () -> cache.lex("print(\"unterminated);"));
+        Assertions.assertEquals(0, entries(directory).size());
+    }
+
+    private static void assertLexed(String source, TokenBuffer buffer) {
+        List<Token> expected = new Lexer(source).lex();
+        Assertions.assertEquals(expected.size(), buffer.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertEquals(expected.get(i), buffer.get(i));
+        }
+    }
+
+    private static Path entry(Path directory) throws IOException {
+        List<Path> entries = entries(directory);
+        Assertions.assertEquals(1, entries.size());
+        return entries.get(0);
+    }
+
+    private static List<Path> entries(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+}
@@ -0,0 +1,14 @@
+package plc.project;
+
+/**
+ * A pull based supply of tokens, used when the token list should not be
+ * materialized up front (see {@link Lexer#Lexer(java.io.Reader)}).
+ */
+public interface TokenSource {
+
+    /**
+     * Returns the next token, or {@code null} once the input is exhausted.
+     */
+    Token next() throws ParseException;
+
+}